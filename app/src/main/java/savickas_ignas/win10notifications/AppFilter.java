@@ -0,0 +1,50 @@
+package savickas_ignas.win10notifications;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The apps whose notifications are forwarded to the PC.
+ * <p>
+ * Built once from the "apps_list" preference and never changed, so the
+ * NotificationListener can check every notification with a single hash
+ * lookup and without a lock. When the preference changes a new filter is
+ * built and swapped in.
+ */
+public final class AppFilter {
+
+    public static final AppFilter EMPTY = new AppFilter(Collections.<String>emptySet());
+
+    private final Set<String> packageNames;
+
+    private AppFilter(Set<String> packageNames) {
+        this.packageNames = packageNames;
+    }
+
+    /**
+     * Build a filter that accepts the given packages.
+     *
+     * @param packageNames The package names, or null for none
+     */
+    public static AppFilter of(Collection<String> packageNames) {
+        if (packageNames == null || packageNames.isEmpty()) {
+            return EMPTY;
+        }
+        // Copied, the set from SharedPreferences must not be kept or changed
+        return new AppFilter(Collections.unmodifiableSet(new HashSet<>(packageNames)));
+    }
+
+    public boolean accepts(String packageName) {
+        return packageName != null && packageNames.contains(packageName);
+    }
+
+    public boolean isEmpty() {
+        return packageNames.isEmpty();
+    }
+
+    public int size() {
+        return packageNames.size();
+    }
+}
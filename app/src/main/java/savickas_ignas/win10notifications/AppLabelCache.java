@@ -0,0 +1,101 @@
+package savickas_ignas.win10notifications;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The names of apps, as shown on the PC, looked up once per app.
+ * <p>
+ * Looking a name up asks the PackageManager, which is a call into another
+ * process. The names are kept, least recently used first out, so the
+ * notifications of an app that posts often only cost a map lookup. The
+ * owner calls {@link #invalidate(String)} when an app is installed, updated
+ * or removed.
+ */
+public class AppLabelCache {
+
+    public static final int DEFAULT_CAPACITY = 128;
+
+    public interface Loader {
+        /**
+         * Look up the name of an app.
+         *
+         * @return The name, or an empty string if the app is not installed
+         */
+        CharSequence load(String packageName);
+    }
+
+    private final Loader loader;
+    private final LinkedHashMap<String, CharSequence> labels;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public AppLabelCache(Loader loader) {
+        this(loader, DEFAULT_CAPACITY);
+    }
+
+    public AppLabelCache(Loader loader, final int capacity) {
+        this.loader = loader;
+        this.labels = new LinkedHashMap<String, CharSequence>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CharSequence> eldest) {
+                if (size() > capacity) {
+                    evictions++;
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * The name of an app, looked up if it is not known yet.
+     */
+    public synchronized CharSequence get(String packageName) {
+        CharSequence label = labels.get(packageName);
+        if (label != null) {
+            hits++;
+            return label;
+        }
+        misses++;
+        label = loader.load(packageName);
+        if (label == null) {
+            label = "";
+        }
+        labels.put(packageName, label);
+        return label;
+    }
+
+    /**
+     * Forget the name of an app, it is looked up again when next needed.
+     */
+    public synchronized void invalidate(String packageName) {
+        labels.remove(packageName);
+    }
+
+    public synchronized void clear() {
+        labels.clear();
+    }
+
+    public synchronized int size() {
+        return labels.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return labels.size() + " labels, " + hits + " hits, " + misses + " misses, " + evictions + " evictions";
+    }
+}
@@ -182,7 +182,6 @@ public class BluetoothChatFragment extends Fragment implements ServiceConnection
                         getActivity().startService(stopIntent);
                         mChatService.stop();
                         mChatService.setWasConnected();
-                        mChatService.setNotConnected();
                         if (serviceBound) {
                             getActivity().unbindService(BluetoothChatFragment.this);
                             serviceBound = false;
@@ -305,14 +304,13 @@ public class BluetoothChatFragment extends Fragment implements ServiceConnection
                     break;
                 case Constants.MESSAGE_WRITE:
                     byte[] writeBuf = (byte[]) msg.obj;
-                    // construct a string from the buffer
-                    String writeMessage = new String(writeBuf);
+                    // construct a string from the encoded frame
+                    String writeMessage = FrameDecoder.describe(writeBuf);
                     mConversationArrayAdapter.add("Me: " + writeMessage);
                     break;
                 case Constants.MESSAGE_READ:
-                    byte[] readBuf = (byte[]) msg.obj;
-                    // construct a string from the valid bytes in the buffer
-                    String readMessage = new String(readBuf, 0, msg.arg1);
+                    // the service has already decoded the received frame
+                    String readMessage = (String) msg.obj;
                     mConversationArrayAdapter.add(mConnectedDeviceName + ": " + readMessage);
                     break;
                 case Constants.MESSAGE_DEVICE_NAME:
@@ -368,6 +366,22 @@ public class BluetoothChatFragment extends Fragment implements ServiceConnection
      * Establish connection with other divice
      */
     private void connectDevice() {
+        // A PC on the same Wi-Fi is reached over TCP instead of Bluetooth
+        String networkAddress = PreferenceManager.getDefaultSharedPreferences(getActivity())
+                .getString("pc_network_address", "").trim();
+        if (!networkAddress.isEmpty()) {
+            Transport.Factory endpoint;
+            try {
+                endpoint = TcpTransport.factory(networkAddress);
+            } catch (IllegalArgumentException e) {
+                Toast.makeText(getActivity(), e.getMessage(), Toast.LENGTH_SHORT).show();
+                return;
+            }
+            if (mChatService != null) {
+                mChatService.connect(networkAddress, endpoint);
+            }
+            return;
+        }
         // Get the device MAC address
         String address = sharedPreferences.getString("DEVICE_ADDRESS", "");
         if (Objects.equals(address, "")) {
@@ -409,7 +423,6 @@ public class BluetoothChatFragment extends Fragment implements ServiceConnection
                 else {
                     if (mChatService != null) {
                         mChatService.setWasConnected();
-                        mChatService.setNotConnected();
                         mChatService.stop();
                         connected = false;
                     }
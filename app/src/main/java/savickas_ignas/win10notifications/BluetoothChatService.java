@@ -8,6 +8,7 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
 import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
@@ -23,8 +24,10 @@ import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.ContactsContract;
 import android.provider.Telephony;
@@ -34,55 +37,79 @@ import android.telephony.TelephonyManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
-import java.util.Objects;
-import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 
 import static android.graphics.Color.WHITE;
 
 public class BluetoothChatService extends Service {
 
+    // Name for the SDP record when creating server socket
+    private static final String NAME_SECURE = "Win10NotificationsSecure";
+
     // Unique UUID for this application
     private static final UUID MY_UUID_SECURE =
             UUID.fromString("d2811b95-f5dd-4f84-b817-6becb507d786");
 
     // Member fields
     private final BluetoothAdapter mAdapter;
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-    private int mState;
-    private int mNewState;
-    private Handler mHandler;
+    private final AtomicReference<AcceptThread> mAcceptThread = new AtomicReference<>();
+    // One for every PC, by Bluetooth address or host:port
+    private final ConcurrentMap<String, Session> sessions = new ConcurrentHashMap<>();
+    private volatile Handler mHandler;
     private final IBinder mBinder = new MyBinder();
-    private String mConnectedDeviceName = null;
     private NotificationManager notificationManager;
-    private BluetoothDevice device;
-    private boolean wasConnected = false;
-    private boolean connecting = false;
-    private boolean notConnected = true;
-    private boolean connected = false;
-    private final Handler handlerReconnect = new Handler();
-    private final Handler handlerNotification = new Handler();
-    private final int reconnectTime = 15000;
+    // Runs the receivers, the timers and the contact lookups, so they never wait on the UI
+    private final HandlerThread serviceThread = new HandlerThread("ServiceThread");
+    private Handler handlerReconnect;
+    private Handler handlerNotification;
+    // Text of the foreground notification, only used on the service thread
+    private String foregroundText;
 
     private SharedPreferences defaultSharedPreferences;
+    // RFCOMM channels of the PCs, to connect without an SDP lookup
+    private RfcommChannelCache channelCache;
     private String callerPhoneNumber;
 
-    private boolean fullBattery;
-    private boolean powerConnected = true;
-
-    private Queue<String> messages = new LinkedList<>();
-    private Map<String, PendingIntent> notificationContentIntents = new HashMap<>();
-
-    private final Handler handlerSendMessage = new Handler();
+    private volatile boolean fullBattery;
+    private volatile boolean powerConnected = true;
+
+    // What the notifications on the phone look like, to sync the PCs after a reconnect.
+    // Changed only on the service thread, read by the WriterThreads.
+    private final NotificationStateTable stateTable = new NotificationStateTable();
+    // Limits applied to every session, including the ones made later
+    private volatile int batchMaxBytes = 16 * 1024;
+    private volatile long batchLingerNanos = 0;
+    private volatile long ackTimeoutNanos = TimeUnit.SECONDS.toNanos(10);
+    private volatile int windowMaxFrames = SendWindow.DEFAULT_MAX_FRAMES;
+    private volatile long windowMaxBytes = SendWindow.DEFAULT_MAX_BYTES;
+    private volatile long heartbeatIntervalMillis = Heartbeat.DEFAULT_INTERVAL_MILLIS;
+    private volatile int heartbeatMissThreshold = Heartbeat.DEFAULT_MISS_THRESHOLD;
+    // Only used by the receivers, on the service thread
+    private final FrameEncoder encoder = new FrameEncoder();
+    private final Map<String, PendingIntent> notificationContentIntents = new ConcurrentHashMap<>();
+    // Runs commands from the PC, so the ConnectedThread only reads and decodes
+    private final ExecutorService commandExecutor = Executors.newFixedThreadPool(2);
+    private final KeyedExecutor commands = new KeyedExecutor(commandExecutor, 256);
 
     // Constants that indicate the current connection state
     public static final int STATE_NONE = 0;       // we're doing nothing
@@ -100,24 +127,50 @@ public class BluetoothChatService extends Service {
             if (action.equals(BluetoothAdapter.ACTION_STATE_CHANGED)) {
                 final int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.ERROR);
                 switch (state) {
+                    // PCs on Wi-Fi stay connected
                     case BluetoothAdapter.STATE_OFF:
-                        mState = STATE_NO_BLUETOOTH;
+                        for (Session session : sessions.values()) {
+                            if (session.bluetooth) {
+                                session.connection.set(ConnectionStateMachine.State.NoBluetooth);
+                            }
+                        }
                         updateUserInterfaceTitle();
                         break;
                     case BluetoothAdapter.STATE_TURNING_OFF:
-                        stop();
+                        cancel(mAcceptThread.getAndSet(null));
+                        for (Session session : sessions.values()) {
+                            if (session.bluetooth) {
+                                session.stop();
+                            }
+                        }
+                        updateUserInterfaceTitle();
                         break;
                     case  BluetoothAdapter.STATE_ON:
-                        mState = STATE_NONE;
+                        for (Session session : sessions.values()) {
+                            if (session.bluetooth) {
+                                session.reconnectPolicy.reset();
+                                session.connection.set(ConnectionStateMachine.State.None);
+                            }
+                        }
                         start();
-                        if (wasConnected)
-                        {
-                            connect(device);
+                        for (Session session : sessions.values()) {
+                            if (session.bluetooth && session.connection.get().isReconnect() && session.endpoint != null) {
+                                connect(session, session.endpoint);
+                            }
                         }
                         break;
                     case BluetoothAdapter.STATE_TURNING_ON:
                         break;
                 }
+            } else if (action.equals(BluetoothDevice.ACTION_BOND_STATE_CHANGED)) {
+                int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
+                BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+                Session session = device != null ? sessions.get(device.getAddress()) : null;
+                if (bondState == BluetoothDevice.BOND_BONDED && session != null && session.isIdle()) {
+                    // Just paired, so the PC is likely in range, retry soon
+                    session.reconnectPolicy.reset();
+                    scheduleReconnect(session);
+                }
             }
         }
     };
@@ -129,26 +182,6 @@ public class BluetoothChatService extends Service {
 
             assert action != null;
             switch (action) {
-                case Constants.NOTIFICATION_LISTENER_POSTED_ACTION: {
-                    String key = intent.getStringExtra("key");
-                    CharSequence appName = intent.getCharSequenceExtra("appName");
-                    String packageName = intent.getStringExtra("packageName");
-                    CharSequence title = intent.getCharSequenceExtra("title");
-                    CharSequence text = intent.getCharSequenceExtra("text");
-                    PendingIntent pendingIntent = intent.getParcelableExtra("contentIntent");
-                    if (pendingIntent != null) {
-                        notificationContentIntents.put(key, pendingIntent);
-                        sendMessage(key, title, text, appName, packageName, "intent");
-                    }
-                    sendMessage(key, title, text, appName, packageName);
-                    break;
-                }
-                case Constants.NOTIFICATION_LISTENER_REMOVED_ACTION: {
-                    String key = intent.getStringExtra("key");
-                    sendMessage(key);
-                    notificationContentIntents.remove(key);
-                    break;
-                }
                 case Constants.NOTIFICATION_DELETED_ACTION: {
                     int notificationId = intent.getIntExtra("notificationId", 0);
                     sendMessage(Integer.toString(notificationId));
@@ -203,7 +236,7 @@ public class BluetoothChatService extends Service {
                     boolean batteryWarningEnabled = defaultSharedPreferences.getBoolean("battery_warning_enabled", false);
                     if (batteryWarningEnabled) {
                         int status = intent.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
-                        if (status == BatteryManager.BATTERY_STATUS_FULL && !fullBattery && powerConnected && connected) {
+                        if (status == BatteryManager.BATTERY_STATUS_FULL && !fullBattery && powerConnected && isAnyConnected()) {
                             fullBattery = true;
                             sendMessage("full_battery", "Full battery", "Your device is fully charged!", "Full Battery", "full_battery");
                         }
@@ -231,13 +264,85 @@ public class BluetoothChatService extends Service {
         }
     };
 
+    // Merges the updates of notifications that are posted again and again,
+    // only used on the service thread
+    private final NotificationThrottle throttle = new NotificationThrottle(new NotificationThrottle.Sink() {
+        @Override
+        public void deliver(NotificationRecord record) {
+            String key = record.getKey();
+            PendingIntent pendingIntent = record.getContentIntent();
+            if (pendingIntent != null) {
+                notificationContentIntents.put(key, pendingIntent);
+                sendMessage(key, record.getTitle(), record.getText(), record.getAppName(), record.getPackageName(), "intent", record.isResync());
+            } else {
+                sendMessage(key, record.getTitle(), record.getText(), record.getAppName(), record.getPackageName(), "", record.isResync());
+            }
+        }
+    });
+
+    private final Runnable flushThrottle = new Runnable() {
+        @Override
+        public void run() {
+            throttle.flush(SystemClock.uptimeMillis());
+            scheduleThrottleFlush();
+        }
+    };
+
+    /**
+     * Takes the notifications from the NotificationListener, on the service thread.
+     */
+    private final NotificationBus.Receiver busReceiver = new NotificationBus.Receiver() {
+        @Override
+        public void onPosted(NotificationRecord record) {
+            throttle.offer(record, SystemClock.uptimeMillis());
+            scheduleThrottleFlush();
+        }
+
+        @Override
+        public void onRemoved(String key) {
+            throttle.remove(key);
+            sendRemoval(key);
+            notificationContentIntents.remove(key);
+        }
+    };
+
+    /**
+     * Shows the current state in the UI and the foreground notification. Runs
+     * on the service thread and reads the latest state, so the UI ends up right
+     * even when listeners of racing transitions are called out of order.
+     */
+    private final Runnable publishState = new Runnable() {
+        @Override
+        public void run() {
+            ConnectionStateMachine.State state = aggregateState();
+            Handler handler = mHandler;
+            if (handler != null) {
+                // Give the new state to the Handler so the UI Activity can update
+                handler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, state.getValue(), -1).sendToTarget();
+            }
+            String text;
+            switch (state) {
+                case Connected:
+                    text = getString(R.string.title_connected_to, connectedNames());
+                    break;
+                case NoBluetooth:
+                    text = getString(R.string.title_no_bluetooth);
+                    break;
+                default:
+                    text = getString(isAnyReconnecting() ? R.string.title_connecting : R.string.title_not_connected);
+            }
+            if (!text.equals(foregroundText)) {
+                foregroundText = text;
+                setForegroundNotification(text);
+            }
+        }
+    };
+
     /**
      * Constructor. Prepares a new BluetoothChat session.
      */
     public BluetoothChatService() {
         mAdapter = BluetoothAdapter.getDefaultAdapter();
-        mState = STATE_NONE;
-        mNewState = mState;
     }
 
     /*public BroadcastReceiver getFragmentReceiver() {
@@ -248,318 +353,667 @@ public class BluetoothChatService extends Service {
         this.fragmentReceiver = receiver;
     }*/
 
-    private synchronized void updateUserInterfaceTitle() {
-        mNewState = mState;
+    private void updateUserInterfaceTitle() {
+        // Bursts of changes are published once
+        handlerNotification.removeCallbacks(publishState);
+        handlerNotification.post(publishState);
+    }
 
-        if (mHandler != null) {
-            // Give the new state to the Handler so the UI Activity can update
-            mHandler.obtainMessage(Constants.MESSAGE_STATE_CHANGE, mNewState, -1).sendToTarget();
+    private void scheduleThrottleFlush() {
+        handlerNotification.removeCallbacks(flushThrottle);
+        long due = throttle.nextDueMillis();
+        if (due >= 0) {
+            // The throttle runs on uptimeMillis, the clock of postAtTime
+            handlerNotification.postAtTime(flushThrottle, due);
         }
-        switch (mNewState) {
-            case STATE_CONNECTED:
-                setForegroundNotification(getString(R.string.title_connected_to, mConnectedDeviceName));
-                if (!connected) {
-                   sendMessages();
-                    Intent intent = new Intent(Constants.NOTIFICATION_LISTENER_GET_ALL_ACTION);
-                    sendBroadcast(intent);
-                }
-                connecting = false;
-                connected = true;
-                break;
-            case STATE_CONNECTING:
-                if (!connecting && wasConnected)
-                {
-                    setForegroundNotification(getString(R.string.title_connecting));
-                    connecting = true;
-                }
-                break;
-            case STATE_LISTEN:
-            case STATE_NONE:
-                if (!connecting && !wasConnected && notConnected)
-                {
-                    setForegroundNotification(getString(R.string.title_not_connected));
-                    notConnected = false;
-                }
-                else if (wasConnected && !connecting)
-                {
-                    setForegroundNotification(getString(R.string.title_connecting));
-                    connecting = true;
+    }
+
+    /**
+     * Return the current connection state, the busiest of all sessions.
+     */
+    public int getState() {
+        return aggregateState().getValue();
+    }
+
+    private ConnectionStateMachine.State aggregateState() {
+        ConnectionStateMachine.State state;
+        if (mAdapter == null || !mAdapter.isEnabled()) {
+            state = ConnectionStateMachine.State.NoBluetooth;
+        } else if (mAcceptThread.get() != null) {
+            state = ConnectionStateMachine.State.Listen;
+        } else {
+            state = ConnectionStateMachine.State.None;
+        }
+        for (Session session : sessions.values()) {
+            state = ConnectionStateMachine.busiest(state, session.connection.getState());
+        }
+        return state;
+    }
+
+    private boolean isAnyConnected() {
+        for (Session session : sessions.values()) {
+            if (session.connection.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isAnyReconnecting() {
+        for (Session session : sessions.values()) {
+            if (session.connection.get().isReconnect()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The names of the connected PCs, for the UI.
+     */
+    private String connectedNames() {
+        StringBuilder names = new StringBuilder();
+        for (Session session : sessions.values()) {
+            if (session.connection.isConnected()) {
+                if (names.length() > 0) {
+                    names.append(", ");
                 }
-                handlerSendMessage.removeCallbacksAndMessages(null);
-                connected = false;
-                fullBattery = false;
-                powerConnected = true;
-                break;
-            case STATE_NO_BLUETOOTH:
-                setForegroundNotification(getString(R.string.title_no_bluetooth));
-                connecting = false;
-                handlerSendMessage.removeCallbacksAndMessages(null);
-                connected = false;
-                notConnected = true;
+                names.append(session.name);
+            }
         }
+        return names.toString();
     }
 
     /**
-     * Return the current connection state.
+     * Return every PC the service connects or connected to.
      */
-    public synchronized int getState() {
-        return mState;
+    public List<Session> getSessions() {
+        return new ArrayList<>(sessions.values());
     }
 
-    public synchronized void setWasConnected() {
-        this.wasConnected = false;
+    /**
+     * Return the session of a PC, or null if there is none.
+     *
+     * @param id The Bluetooth address or host:port of the PC
+     */
+    public Session getSession(String id) {
+        return sessions.get(id);
     }
 
-    public synchronized void setNotConnected() {
-        this.notConnected = true;
+    /**
+     * Return the session of a PC, making it if needed.
+     *
+     * @param bluetooth Whether the PC is reached over RFCOMM, used only when
+     *                  the session is made
+     */
+    private Session session(String id, boolean bluetooth) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            Session created = new Session(id, bluetooth);
+            session = sessions.putIfAbsent(id, created);
+            if (session == null) {
+                session = created;
+                session.writer.start();
+            }
+        }
+        return session;
+    }
+
+    public void setWasConnected() {
+        cancel(mAcceptThread.getAndSet(null));
+        for (final Session session : sessions.values()) {
+            session.connection.setReconnect(false);
+            handlerReconnect.removeCallbacks(session.reconnect);
+            // Not reconnecting, so nothing needs to be kept for the PC
+            session.writer.post(new Runnable() {
+                @Override
+                public void run() {
+                    session.writer.mmJournaling = false;
+                }
+            });
+        }
+        updateUserInterfaceTitle();
     }
 
     /**
      * Start the chat service. Specifically start AcceptThread to begin a
      * session in listening (server) mode. Called by the Activity onResume()
      */
-    public synchronized void start() {
+    public void start() {
 
-        if (mConnectedThread != null) {
-            if (mHandler != null) {
-                // Send the name of the connected device back to the UI Activity
-                Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
-                Bundle bundle = new Bundle();
-                bundle.putString(Constants.DEVICE_NAME, mConnectedDeviceName);
-                msg.setData(bundle);
-                mHandler.sendMessage(msg);
-            }
+        Handler handler = mHandler;
+        if (isAnyConnected() && handler != null) {
+            // Send the name of the connected device back to the UI Activity
+            Message msg = handler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
+            Bundle bundle = new Bundle();
+            bundle.putString(Constants.DEVICE_NAME, connectedNames());
+            msg.setData(bundle);
+            handler.sendMessage(msg);
         }
 
         if (mAdapter == null || !mAdapter.isEnabled())
         {
-            mState = STATE_NO_BLUETOOTH;
+            for (Session session : sessions.values()) {
+                if (session.bluetooth) {
+                    session.connection.set(ConnectionStateMachine.State.NoBluetooth);
+                }
+            }
+        }
+        else
+        {
+            if (isAnyReconnecting()) {
+                startListening();
+            }
         }
-
         updateUserInterfaceTitle();
     }
 
+    /**
+     * Start the AcceptThread, so a PC can connect as soon as it is back
+     * instead of waiting for the next outgoing attempt. Runs until stopped
+     * or Bluetooth goes off.
+     */
+    private void startListening() {
+        if (mAdapter == null || !mAdapter.isEnabled() || mAcceptThread.get() != null) {
+            return;
+        }
+        AcceptThread acceptThread = new AcceptThread();
+        if (mAcceptThread.compareAndSet(null, acceptThread)) {
+            acceptThread.start();
+            for (Session session : sessions.values()) {
+                ConnectionStateMachine.Snapshot snapshot = session.connection.get();
+                session.connection.transition(snapshot.getAttempt(), ConnectionStateMachine.State.None, ConnectionStateMachine.State.Listen);
+            }
+            updateUserInterfaceTitle();
+        }
+    }
+
+    /**
+     * The state to go back to when there is no connection.
+     */
+    private ConnectionStateMachine.State idleState() {
+        return mAcceptThread.get() != null ? ConnectionStateMachine.State.Listen : ConnectionStateMachine.State.None;
+    }
+
     /**
      * Start the ConnectThread to initiate a connection to a remote device.
+     * Other PCs stay connected.
      *
      * @param device The BluetoothDevice to connect
      */
-    public synchronized void connect(BluetoothDevice device) {
+    public void connect(BluetoothDevice device) {
+        connect(session(device.getAddress(), true), RfcommTransport.factory(device, MY_UUID_SECURE, channelCache));
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {
-                mConnectThread.cancel();
-                mConnectThread = null;
-            }
-        }
+    /**
+     * Start the ConnectThread to initiate a connection over any transport.
+     * Threads of an earlier attempt to the same PC are cancelled and can no
+     * longer change its state.
+     *
+     * @param id Names the PC, such as its host:port
+     * @param endpoint Opens the transport, again for every reconnect
+     */
+    public void connect(String id, Transport.Factory endpoint) {
+        connect(session(id, false), endpoint);
+    }
+
+    private void connect(Session session, Transport.Factory endpoint) {
+        session.endpoint = endpoint;
+        long attempt = session.connection.beginAttempt();
 
         // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        cancel(session.connectedThread.getAndSet(null));
+
+        Transport transport;
+        try {
+            transport = endpoint.create();
+        } catch (IOException e) {
+            cancel(session.connectThread.getAndSet(null));
+            connectionFailed(session, attempt);
+            return;
         }
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device);
-        mConnectThread.start();
-        updateUserInterfaceTitle();
+        // Cancel any thread attempting to make a connection
+        ConnectThread connectThread = new ConnectThread(session, transport, attempt);
+        cancel(session.connectThread.getAndSet(connectThread));
 
-        this.device = device;
+        // Start the thread to connect with the given device
+        connectThread.start();
     }
 
     /**
-     * Start the ConnectedThread to begin managing a Bluetooth connection
+     * Stop the connection to a PC and forget it, with whatever it had not
+     * acknowledged.
      *
-     * @param socket The BluetoothSocket on which the connection was made
-     * @param device The BluetoothDevice that has been connected
+     * @param id The Bluetooth address or host:port of the PC
      */
-    public synchronized void connected(BluetoothSocket socket, BluetoothDevice
-            device) {
-
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    public void remove(String id) {
+        Session session = sessions.remove(id);
+        if (session == null) {
+            return;
         }
+        handlerReconnect.removeCallbacks(session.reconnect);
+        session.connection.setReconnect(false);
+        session.stop();
+        session.writer.cancel();
+        updateUserInterfaceTitle();
+    }
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    /**
+     * Start the ConnectedThread to begin managing a connection
+     *
+     * @param session The PC the connection is to
+     * @param transport The transport on which the connection was made
+     * @param attempt The connection attempt that made the connection
+     */
+    private void connected(Session session, Transport transport, long attempt) {
+
+        final ConnectedThread link = new ConnectedThread(session, transport, attempt);
+        if (!session.connection.transition(attempt, ConnectionStateMachine.State.Connecting, ConnectionStateMachine.State.Connected)) {
+            // Stopped or replaced by another attempt while connecting, the
+            // link of the attempt that won is left alone
+            link.cancel();
+            return;
         }
+        session.name = transport.getName();
+        cancel(session.connectedThread.getAndSet(link));
+        final WriterThread writer = session.writer;
+        writer.post(new Runnable() {
+            @Override
+            public void run() {
+                writer.onConnected(link);
+            }
+        });
+        session.connection.setReconnect(true);
+        session.reconnectPolicy.onConnected(SystemClock.elapsedRealtime());
+        startListening();
+        LinkMetrics metrics = transport.getMetrics();
+        Log.i("BluetoothChatService", "Connected to " + session.name + " via "
+                + metrics.getConnectPath() + " in " + metrics.getConnectMillis() + " ms");
 
         // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
-        wasConnected = true;
+        link.start();
 
-        if (mHandler != null) {
-            // Send the name of the connected device back to the UI Activity
-            Message msg = mHandler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
+        Handler handler = mHandler;
+        if (handler != null) {
+            // Send the names of the connected devices back to the UI Activity
+            Message msg = handler.obtainMessage(Constants.MESSAGE_DEVICE_NAME);
             Bundle bundle = new Bundle();
-            bundle.putString(Constants.DEVICE_NAME, device.getName());
+            bundle.putString(Constants.DEVICE_NAME, connectedNames());
             msg.setData(bundle);
-            mHandler.sendMessage(msg);
+            handler.sendMessage(msg);
         }
 
-        mConnectedDeviceName = device.getName();
-
-        updateUserInterfaceTitle();
         //showNotification(getString(R.string.app_name), Constants.INFO_NOTIFICATION_ID, getString(R.string.title_connected_to, mConnectedDeviceName), getString(R.string.app_name), Notification.PRIORITY_MIN);
-        showDeviceConnectionNotification(getString(R.string.title_connected_to, mConnectedDeviceName));
+        showDeviceConnectionNotification(getString(R.string.title_connected_to, session.name));
         dismissNotification(false);
     }
 
     /**
      * Stop all threads
      */
-    public synchronized void stop() {
+    public void stop() {
+        cancel(mAcceptThread.getAndSet(null));
+        for (Session session : sessions.values()) {
+            session.stop();
+        }
+        updateUserInterfaceTitle();
+    }
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+    /**
+     * Take a connection a PC made to the AcceptThread. Only the saved PC and
+     * the PCs that already have a session may connect, any other bonded
+     * device is closed. The first connection wins: it replaces an outgoing
+     * attempt to the same PC that has not finished yet, but is closed if that
+     * PC already is connected.
+     */
+    private void accepted(BluetoothDevice device, Transport transport) {
+        String address = device.getAddress();
+        Session session = sessions.get(address);
+        if (session == null && address.equals(getSharedPreferences("DEVICE", MODE_PRIVATE).getString("DEVICE_ADDRESS", ""))) {
+            session = session(address, true);
         }
+        if (session == null) {
+            Log.w("BluetoothChatService", "Refused connection from " + address);
+            close(transport);
+            return;
+        }
+        if (session.endpoint == null) {
+            // Connected to first, so reconnect the usual way once it is lost
+            session.endpoint = RfcommTransport.factory(device, MY_UUID_SECURE, channelCache);
+        }
+        long attempt = session.connection.tryBeginAttempt();
+        if (attempt < 0) {
+            close(transport);
+            return;
+        }
+        handlerReconnect.removeCallbacks(session.reconnect);
+        cancel(session.connectThread.getAndSet(null));
+        connected(session, transport, attempt);
+    }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+    private static void close(Transport transport) {
+        try {
+            transport.close();
+        } catch (IOException ignored) {
         }
+    }
 
-        mState = STATE_NONE;
-        connecting = false;
+    private static void cancel(AcceptThread thread) {
+        if (thread != null) {
+            thread.cancel();
+        }
+    }
 
-        updateUserInterfaceTitle();
+    private static void cancel(ConnectThread thread) {
+        if (thread != null) {
+            thread.cancel();
+        }
     }
 
-    /**
-     * Write to the ConnectedThread in an unsynchronized manner
-     *
-     * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
-     */
-    public void write(byte[] out) {
-        // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
-        synchronized (this) {
-            if (mState != STATE_CONNECTED) return;
-            r = mConnectedThread;
+    private static void cancel(ConnectedThread thread) {
+        if (thread != null) {
+            thread.cancel();
         }
-        // Perform the write unsynchronized
-        r.write(out);
     }
 
     /**
      * Indicate that the connection attempt failed and notify the UI Activity.
      */
-    private void connectionFailed() {
-        mState = STATE_NONE;
-        updateUserInterfaceTitle();
-
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
-
-        if (wasConnected && mState != STATE_NO_BLUETOOTH)
-        {
-            handlerReconnect.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    BluetoothChatService.this.connect(device);
-                }
-            }, reconnectTime);
+    private void connectionFailed(Session session, long attempt) {
+        if (!session.connection.transition(attempt, ConnectionStateMachine.State.Connecting, idleState())) {
+            // Cancelled by a newer attempt or stop()
+            return;
         }
+        scheduleReconnect(session);
     }
 
     /**
      * Indicate that the connection was lost and notify the UI Activity.
      */
-    private void connectionLost() {
-        if (mHandler != null) {
+    private void connectionLost(ConnectedThread link) {
+        Session session = link.mmSession;
+        if (!session.connection.transition(link.mmAttempt, ConnectionStateMachine.State.Connected, idleState())) {
+            // Cancelled by a newer attempt or stop()
+            return;
+        }
+        session.connectedThread.compareAndSet(link, null);
+        Log.i("BluetoothChatService", "Connection to " + session.name + " lost, " + link.mmTransport.getMetrics());
+
+        Handler handler = mHandler;
+        if (handler != null) {
             // Send a failure message back to the Activity
-            Message msg = mHandler.obtainMessage(Constants.MESSAGE_TOAST);
+            Message msg = handler.obtainMessage(Constants.MESSAGE_TOAST);
             Bundle bundle = new Bundle();
             bundle.putString(Constants.TOAST, "Device connection was lost");
             msg.setData(bundle);
-            mHandler.sendMessage(msg);
+            handler.sendMessage(msg);
         }
 
-        mState = STATE_NONE;
-        updateUserInterfaceTitle();
         //showNotification(getString(R.string.app_name), Constants.INFO_NOTIFICATION_ID, getString(R.string.title_disconnected_from, mConnectedDeviceName), getString(R.string.app_name), Notification.PRIORITY_MIN);
-        showDeviceConnectionNotification(getString(R.string.title_disconnected_from, mConnectedDeviceName));
-        dismissNotification(true);
+        showDeviceConnectionNotification(getString(R.string.title_disconnected_from, session.name));
+        // The Windows notifications stay while another PC is still connected
+        dismissNotification(!isAnyConnected());
 
-        // Start the service over to restart listening mode
-        BluetoothChatService.this.start();
+        session.reconnectPolicy.onDisconnected(SystemClock.elapsedRealtime());
+        scheduleReconnect(session);
+    }
 
-        if (wasConnected && mState != STATE_NO_BLUETOOTH)
+    private void scheduleReconnect(Session session) {
+        if (session.connection.get().isReconnect())
         {
-            handlerReconnect.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    BluetoothChatService.this.connect(device);
+            long delay = session.reconnectPolicy.nextDelayMillis();
+            Log.i("BluetoothChatService", "Reconnecting to " + session.id + " in " + delay + " ms");
+            handlerReconnect.removeCallbacks(session.reconnect);
+            handlerReconnect.postDelayed(session.reconnect, delay);
+        }
+    }
+
+    /**
+     * One PC. Every session has its own connection, outbound queue, send
+     * window, heartbeat, reconnect policy and journal, and its own
+     * WriterThread, so a slow or lost PC never holds up the others. The
+     * messages are encoded once and the same frames are queued for every
+     * session; a frame is never changed after it is encoded, each writer
+     * puts its own sequence numbers into its copy of a batch.
+     */
+    public class Session {
+        private final String id;
+        // Reached over RFCOMM, so it follows the Bluetooth adapter on and off
+        private final boolean bluetooth;
+        // Where to connect again after the connection is lost
+        private volatile Transport.Factory endpoint;
+        private volatile String name;
+        // Changed without a lock by the connect threads, the reader, the writer and the UI
+        private final ConnectionStateMachine connection = new ConnectionStateMachine();
+        private final AtomicReference<ConnectThread> connectThread = new AtomicReference<>();
+        private final AtomicReference<ConnectedThread> connectedThread = new AtomicReference<>();
+        // How long to wait before connecting again
+        private final ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+        // Pings the PC while connected, to notice a dead link and estimate the round trip
+        private final Heartbeat heartbeat = new Heartbeat();
+        // Owned by the WriterThread
+        private final OutboundQueue messages = new OutboundQueue();
+        // Sent messages the PC has not acknowledged yet, kept across connections
+        private final SendWindow window = new SendWindow();
+        private final WriterThread writer;
+
+        /**
+         * Tells the UI about every change of the connection and the
+         * WriterThread about a lost one. Called on whichever thread made the
+         * change. A new connection is handed to the WriterThread by
+         * connected(), once its ConnectedThread is in place.
+         */
+        private final ConnectionStateMachine.Listener listener = new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(ConnectionStateMachine.Snapshot previous, ConnectionStateMachine.Snapshot current) {
+                boolean wasConnected = previous.getState() == ConnectionStateMachine.State.Connected;
+                boolean isConnected = current.getState() == ConnectionStateMachine.State.Connected;
+                if (wasConnected && !isConnected) {
+                    final long attempt = previous.getAttempt();
+                    writer.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            writer.onDisconnected(attempt);
+                        }
+                    });
+                    if (!isAnyConnected()) {
+                        fullBattery = false;
+                        powerConnected = true;
+                    }
+                }
+                updateUserInterfaceTitle();
+            }
+        };
+
+        private final Runnable reconnect = new Runnable() {
+            @Override
+            public void run() {
+                Transport.Factory endpoint = Session.this.endpoint;
+                if (connection.get().isReconnect() && endpoint != null && isIdle()) {
+                    connect(Session.this, endpoint);
                 }
-            }, reconnectTime);
+            }
+        };
+
+        Session(String id, boolean bluetooth) {
+            this.id = id;
+            this.name = id;
+            this.bluetooth = bluetooth;
+            window.setLimits(windowMaxFrames, windowMaxBytes);
+            heartbeat.setLimits(heartbeatIntervalMillis, heartbeatMissThreshold);
+            if (bluetooth && (mAdapter == null || !mAdapter.isEnabled())) {
+                connection.set(ConnectionStateMachine.State.NoBluetooth);
+            } else if (mAcceptThread.get() != null) {
+                connection.set(ConnectionStateMachine.State.Listen);
+            }
+            connection.addListener(listener);
+            writer = new WriterThread(this);
+        }
+
+        /**
+         * Ends the current attempt first, so the cancelled threads report nothing.
+         */
+        private void stop() {
+            connection.set(ConnectionStateMachine.State.None);
+            cancel(connectThread.getAndSet(null));
+            cancel(connectedThread.getAndSet(null));
+        }
+
+        private boolean isIdle() {
+            ConnectionStateMachine.State state = connection.getState();
+            return state == ConnectionStateMachine.State.None || state == ConnectionStateMachine.State.Listen;
+        }
+
+        /**
+         * The Bluetooth address or host:port of the PC.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * The name of the PC, or its id until it was connected.
+         */
+        public String getName() {
+            return name;
+        }
+
+        public int getState() {
+            return connection.getState().getValue();
+        }
+
+        /**
+         * Return the policy that spaces out reconnect attempts, to tune its delays.
+         */
+        public ReconnectPolicy getReconnectPolicy() {
+            return reconnectPolicy;
+        }
+
+        /**
+         * Return the heartbeat, to read its round trip estimate.
+         */
+        public Heartbeat getHeartbeat() {
+            return heartbeat;
+        }
+
+        /**
+         * Return the window of sent messages, to read its counters.
+         */
+        public SendWindow getSendWindow() {
+            return window;
+        }
+
+        /**
+         * Return the queue of outgoing messages, to tune its limits and read its counters.
+         */
+        public OutboundQueue getOutboundQueue() {
+            return messages;
+        }
+
+        /**
+         * Return the counters of the current connection, or null while not connected.
+         */
+        public LinkMetrics getLinkMetrics() {
+            ConnectedThread link = connectedThread.get();
+            return link != null ? link.mmTransport.getMetrics() : null;
         }
     }
 
     /**
-     * This thread runs while attempting to make an outgoing connection
-     * with a device. It runs straight through; the connection either
-     * succeeds or fails.
+     * This thread runs while listening for incoming connections. It runs
+     * until cancelled, handing every accepted connection to
+     * {@link #accepted(BluetoothDevice, Transport)}.
      */
-    private class ConnectThread extends Thread {
-        private final BluetoothSocket mmSocket;
-        private final BluetoothDevice mmDevice;
+    private class AcceptThread extends Thread {
+        private volatile BluetoothServerSocket mmServerSocket;
+        private volatile boolean mmCancelled;
 
-        ConnectThread(BluetoothDevice device) {
-            mmDevice = device;
-            BluetoothSocket tmp = null;
+        AcceptThread() {
+            super("AcceptThread");
+        }
 
-            // Get a BluetoothSocket for a connection with the
-            // given BluetoothDevice
+        public void run() {
             try {
-                tmp = device.createRfcommSocketToServiceRecord(
-                        MY_UUID_SECURE);
-            } catch (IOException ignored) {
+                // Create a new listening server socket
+                mmServerSocket = mAdapter.listenUsingRfcommWithServiceRecord(NAME_SECURE, MY_UUID_SECURE);
+                // Listen to the server socket until cancelled
+                while (!mmCancelled) {
+                    // This is a blocking call and will only return on a
+                    // successful connection or an exception
+                    BluetoothSocket socket = mmServerSocket.accept();
+                    accepted(socket.getRemoteDevice(), new RfcommTransport(socket));
+                }
+            } catch (IOException e) {
+                if (!mmCancelled) {
+                    Log.w("AcceptThread", "Stopped listening", e);
+                }
+            } finally {
+                closeServerSocket();
+                if (mAcceptThread.compareAndSet(this, null)) {
+                    for (Session session : sessions.values()) {
+                        ConnectionStateMachine.Snapshot snapshot = session.connection.get();
+                        session.connection.transition(snapshot.getAttempt(), ConnectionStateMachine.State.Listen, ConnectionStateMachine.State.None);
+                    }
+                    updateUserInterfaceTitle();
+                }
+            }
+        }
+
+        void cancel() {
+            mmCancelled = true;
+            closeServerSocket();
+        }
+
+        private void closeServerSocket() {
+            BluetoothServerSocket serverSocket = mmServerSocket;
+            if (serverSocket != null) {
+                try {
+                    serverSocket.close();
+                } catch (IOException ignored) {
+                }
             }
-            mmSocket = tmp;
-            mState = STATE_CONNECTING;
+        }
+    }
+
+    /**
+     * This thread runs while attempting to make an outgoing connection
+     * with a device. It runs straight through; the connection either
+     * succeeds or fails.
+     */
+    private class ConnectThread extends Thread {
+        private final Session mmSession;
+        private final Transport mmTransport;
+        private final long mmAttempt;
+
+        ConnectThread(Session session, Transport transport, long attempt) {
+            mmSession = session;
+            mmTransport = transport;
+            mmAttempt = attempt;
         }
 
         public void run() {
 
-            // Always cancel discovery because it will slow down a connection
-            mAdapter.cancelDiscovery();
-
-            // Make a connection to the BluetoothSocket
+            // Make a connection to the PC
             try {
-                // This is a blocking call and will only return on a
-                // successful connection or an exception
-                mmSocket.connect();
+                mmTransport.connect();
             } catch (IOException e) {
                 // Close the socket
-                try {
-                    mmSocket.close();
-                } catch (IOException ignored) {
-                }
-                connectionFailed();
+                cancel();
+                connectionFailed(mmSession, mmAttempt);
                 return;
             }
 
             // Reset the ConnectThread because we're done
-            synchronized (BluetoothChatService.this) {
-                mConnectThread = null;
-            }
+            mmSession.connectThread.compareAndSet(this, null);
 
             // Start the connected thread
-            connected(mmSocket, mmDevice);
+            connected(mmSession, mmTransport, mmAttempt);
         }
 
         void cancel() {
             try {
-                mmSocket.close();
+                mmTransport.close();
             } catch (IOException ignored) {
             }
         }
@@ -570,109 +1024,184 @@ public class BluetoothChatService extends Service {
      * It handles all incoming and outgoing transmissions.
      */
     private class ConnectedThread extends Thread {
-        private final BluetoothSocket mmSocket;
+        private final Session mmSession;
+        private final Transport mmTransport;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
-
-        ConnectedThread(BluetoothSocket socket) {
-            mmSocket = socket;
+        private final long mmAttempt;
+        // When anything was last read, for the heartbeat
+        private volatile long mmLastReceivedNanos = System.nanoTime();
+
+        ConnectedThread(Session session, Transport transport, long attempt) {
+            mmSession = session;
+            mmTransport = transport;
+            mmAttempt = attempt;
             InputStream tmpIn = null;
             OutputStream tmpOut = null;
 
-            // Get the BluetoothSocket input and output streams
+            // Get the input and output streams of the transport
             try {
-                tmpIn = socket.getInputStream();
-                tmpOut = socket.getOutputStream();
+                tmpIn = transport.getInputStream();
+                tmpOut = transport.getOutputStream();
             } catch (IOException ignored) {
             }
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
-            mState = STATE_CONNECTED;
         }
 
         public void run() {
-            byte[] buffer = new byte[1024];
-            int bytes;
+            FrameDecoder decoder = new FrameDecoder();
+            FrameDecoder.Frame frame = new FrameDecoder.Frame();
 
-            // Keep listening to the InputStream while connected
-            while (mState == STATE_CONNECTED) {
+            // Keep listening to the InputStream until the socket is closed
+            while (true) {
                 try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-                    String readMessage = new String(buffer, 0, bytes);
-                    String[] messageParts = readMessage.split(";", -1);
-                    StringBuilder notificationText = new StringBuilder();
-                    for (int i=6; i<messageParts.length; i++) {
-                        notificationText.append(messageParts[i]);
-                        if (i + 1 < messageParts.length) {
-                            notificationText.append(';');
-                        }
+                    // Read whatever is available, it may hold part of a frame or several frames
+                    decoder.readFrom(mmInStream);
+                    mmLastReceivedNanos = System.nanoTime();
+                    while (decoder.next(frame)) {
+                        handleFrame(frame);
+                    }
+                } catch (IOException e) {
+                    connectionLost(this);
+                    break;
+                } catch (InterruptedException | RejectedExecutionException e) {
+                    // The service is shutting down
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Handle a frame received from the PC. Fields are id, title, text,
+         * app name and color. Acks and Sync requests go straight to the
+         * WriterThread. Every other command is copied out of the frame and
+         * handed to the command executor, in order per id, so the socket
+         * keeps being read while a command waits on the system.
+         */
+        private void handleFrame(FrameDecoder.Frame frame) throws InterruptedException {
+            Type action = frame.getType();
+            if (action == Type.Ack) {
+                long field = frame.getSequenceField(0, Long.MIN_VALUE);
+                if (field == Long.MIN_VALUE) {
+                    Log.w("ConnectedThread", "Ignored malformed " + frame);
+                    return;
+                }
+                final int sequence = (int) field;
+                mmSession.writer.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mmSession.writer.onAck(sequence);
+                    }
+                });
+                return;
+            } else if (action == Type.Ping) {
+                final long sent = frame.getLong(0, 0);
+                mmSession.writer.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mmSession.writer.pong(sent);
                     }
-                    String[] textParts = new String[6];
-                    int location = 0;
-                    for (int i=0; i<textParts.length; i++) {
-                        textParts[i] = notificationText.substring(location, location + Integer.parseInt(messageParts[i]));
-                        location += Integer.parseInt(messageParts[i]);
+                });
+                return;
+            } else if (action == Type.Pong) {
+                mmSession.heartbeat.onPong(frame.getLong(0, 0), SystemClock.elapsedRealtime());
+                return;
+            } else if (action == Type.Sync) {
+                // The PC tells what it has, answer with what changed since
+                final long epoch = frame.getLong(0, -1);
+                final long revision = frame.getLong(1, -1);
+                final String digest = frame.getString(2);
+                mmSession.writer.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        mmSession.writer.resync(epoch, revision, digest);
                     }
-                    Type action = Type.valueOf(Integer.parseInt(textParts[0]));
-                    String id = textParts[1];
-                    String  titleText = textParts[2];
-                    String bodyText = textParts[3];
-                    String appName = textParts[4];
-                    String colorHex = '#' + textParts[5];
-                    if (action == Type.Add) {
-                        if (!Objects.equals(bodyText, "")) {
-                            showWindowsNotification(titleText, Integer.parseInt(id), bodyText, appName, colorHex);
+                });
+                return;
+            } else if (action == Type.Add) {
+                final int notificationId = frame.getInt(0, 0);
+                final String titleText = frame.getString(1);
+                final String text = frame.getString(2);
+                final String appName = frame.getString(3);
+                final String colorHex = '#' + frame.getString(4);
+                commands.execute(notificationId, new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!text.isEmpty()) {
+                            showWindowsNotification(titleText, notificationId, text, appName, colorHex);
                         }
                         else {
-                            showWindowsNotification(appName, Integer.parseInt(id), titleText, appName, colorHex);
+                            showWindowsNotification(appName, notificationId, titleText, appName, colorHex);
                         }
-                    } else if (action == Type.Remove) {
-                        try {
-                            cancelNotification(Integer.parseInt(id));
+                    }
+                });
+            } else if (action == Type.Remove) {
+                if (frame.isInt(0)) {
+                    final int notificationId = frame.getInt(0, 0);
+                    commands.execute(notificationId, new Runnable() {
+                        @Override
+                        public void run() {
+                            cancelNotification(notificationId);
                         }
-                        catch (Exception ex) {
-                            if (id.startsWith("+")) {
-                                SmsManager smsManager = SmsManager.getDefault();
-                                String phoneNumber = id.substring(0, 12);
-                                if (id.endsWith("sms")) {
-                                    try {
-                                        smsManager.sendTextMessage(phoneNumber, null, titleText, null, null);
-                                    } catch (Exception ignored) {}
-                                } else if (id.endsWith("call")) {
-                                    try {
-                                        endCall();
-                                        smsManager.sendTextMessage(phoneNumber, null, titleText, null, null);
-                                    } catch (Exception ignored) {}
-                                }
-                            } else {
-                                notificationContentIntents.remove(id);
-                                Intent intent = new Intent(Constants.NOTIFICATION_LISTENER_CANCELED_ACTION);
-                                intent.putExtra("key", id);
-                                sendBroadcast(intent);
-                            }
+                    });
+                } else {
+                    final String id = frame.getString(0);
+                    final String titleText = frame.getString(1);
+                    commands.execute(id, new Runnable() {
+                        @Override
+                        public void run() {
+                            handleRemove(id, titleText);
+                        }
+                    });
+                }
+            } else if (action == Type.Open) {
+                final String id = frame.getString(0);
+                commands.execute(id, new Runnable() {
+                    @Override
+                    public void run() {
+                        PendingIntent pendingIntent = notificationContentIntents.remove(id);
+                        if (pendingIntent != null) {
+                            try {
+                                pendingIntent.send();
+                            } catch (PendingIntent.CanceledException ignored) {}
                         }
-                    } else if (action == Type.Open) {
-                        PendingIntent pendingIntent = notificationContentIntents.get(id);
-                        try {
-                            pendingIntent.send();
-                        } catch (PendingIntent.CanceledException ignored) {}
-                        notificationContentIntents.remove(id);
-                        Intent intent = new Intent(Constants.NOTIFICATION_LISTENER_CANCELED_ACTION);
-                        intent.putExtra("key", id);
-                        sendBroadcast(intent);
+                        NotificationBus.get().cancel(id);
                     }
+                });
+            }
 
-                    if (mHandler != null) {
-                        // Send the obtained bytes to the UI Activity
-                        mHandler.obtainMessage(Constants.MESSAGE_READ, bytes, -1, buffer)
-                                .sendToTarget();
-                    }
-                } catch (IOException e) {
-                    connectionLost();
-                    break;
+            Handler handler = mHandler;
+            if (handler != null) {
+                // Send the received message to the UI Activity
+                handler.obtainMessage(Constants.MESSAGE_READ, -1, -1, frame.toString())
+                        .sendToTarget();
+            }
+        }
+
+        /**
+         * A notification was dismissed on the PC. For a call or SMS the text
+         * is a reply to send to the caller.
+         */
+        private void handleRemove(String id, String titleText) {
+            if (id.startsWith("+")) {
+                SmsManager smsManager = SmsManager.getDefault();
+                int separator = id.lastIndexOf('_');
+                String phoneNumber = separator > 0 ? id.substring(0, separator) : id;
+                if (id.endsWith("sms")) {
+                    try {
+                        smsManager.sendTextMessage(phoneNumber, null, titleText, null, null);
+                    } catch (Exception ignored) {}
+                } else if (id.endsWith("call")) {
+                    try {
+                        endCall();
+                        smsManager.sendTextMessage(phoneNumber, null, titleText, null, null);
+                    } catch (Exception ignored) {}
                 }
+            } else {
+                notificationContentIntents.remove(id);
+                NotificationBus.get().cancel(id);
             }
         }
 
@@ -691,35 +1220,484 @@ public class BluetoothChatService extends Service {
         /**
          * Write to the connected OutStream.
          *
-         * @param buffer The bytes to write
+         * @param buffer One or more complete frames, already length prefixed
+         * @param offset The start offset in buffer
+         * @param count The number of bytes to write
+         * @return false if the write failed, the socket is closed then
          */
-        void write(byte[] buffer) {
+        boolean write(byte[] buffer, int offset, int count) {
             try {
-                int bufferLength = buffer.length;
-                byte[] bufferLengthBytes = ByteBuffer.allocate(4).putInt(bufferLength).array();
-                int bufferLengthBytesLength = bufferLengthBytes.length;
-                byte[] newBuffer = new byte[bufferLengthBytesLength + bufferLength];
-                System.arraycopy(bufferLengthBytes, 0, newBuffer, 0, bufferLengthBytesLength);
-                System.arraycopy(buffer, 0, newBuffer, bufferLengthBytesLength, bufferLength);
-                mmOutStream.write(newBuffer);
-
-                if (mHandler != null) {
-                    // Share the sent message back to the UI Activity
-                    mHandler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, buffer)
-                            .sendToTarget();
-                }
-            } catch (IOException ignored) {
+                mmOutStream.write(buffer, offset, count);
+                return true;
+            } catch (IOException e) {
+                // The read loop notices the closed socket and reports the connection lost
+                cancel();
+                return false;
             }
         }
 
         void cancel() {
             try {
-                mmSocket.close();
+                mmTransport.close();
             } catch (IOException ignored) {
             }
         }
     }
 
+    /**
+     * The only thread that writes to one PC. It runs as long as its session
+     * and owns the session's outbound queue, send window and journal, and its
+     * cursor into the shared state table. Other threads hand work to it with {@link #post(Runnable)},
+     * which neither blocks nor takes a lock, so a slow RFCOMM write can never
+     * stall the receivers on the service thread.
+     * <p>
+     * While connected, everything that is already queued is copied into one
+     * buffer and sent with a single write, because each RFCOMM write has a
+     * high fixed cost. Every message sent stays in the {@link SendWindow}
+     * until the PC acknowledges it. A new connection starts with whatever the
+     * last one left unacknowledged, and no new messages are taken while the
+     * window is full. While disconnected, messages go to the
+     * {@link OutboxJournal} instead.
+     */
+    private class WriterThread extends Thread {
+        // Lock-free, any thread may post, only this thread polls
+        private final ConcurrentLinkedQueue<Runnable> mmInbox = new ConcurrentLinkedQueue<>();
+        private final FrameEncoder mmEncoder = new FrameEncoder();
+        private final List<byte[]> mmSent = new ArrayList<>();
+        private volatile boolean mmStopped;
+        private byte[] mmBatch = new byte[1024];
+        private final Session mmSession;
+        private final OutboundQueue mmMessages;
+        private final SendWindow mmWindow;
+        private final Heartbeat mmHeartbeat;
+        // When the window filled up, 0 while it has room
+        private long mmWindowFullSince;
+        private ConnectedThread mmLink;
+        // A message that was taken from the queue but did not fit the last batch
+        private OutboundQueue.Entry mmCarry;
+        private OutboxJournal mmJournal;
+        // Whether messages are journaled while disconnected
+        private boolean mmJournaling;
+        private long mmLastCheckpointRevision = -1;
+        // The last revision of the state table this thread was told about,
+        // changes up to it are queued or were skipped while disconnected
+        private long mmSeenRevision;
+
+        WriterThread(Session session) {
+            super("WriterThread-" + session.id);
+            mmSession = session;
+            mmMessages = session.messages;
+            mmWindow = session.window;
+            mmHeartbeat = session.heartbeat;
+            mmSeenRevision = stateTable.getRevision();
+        }
+
+        /**
+         * Run a task on this thread. Safe to call from any thread.
+         */
+        void post(Runnable task) {
+            mmInbox.offer(task);
+            LockSupport.unpark(this);
+        }
+
+        void cancel() {
+            mmStopped = true;
+            LockSupport.unpark(this);
+        }
+
+        public void run() {
+            try {
+                mmJournal = new OutboxJournal(new File(getFilesDir(), "outbox-" + mmSession.id.replaceAll("[^A-Za-z0-9]", "_") + ".journal"), OutboxJournal.DEFAULT_CAPACITY);
+            } catch (IOException e) {
+                Log.e("WriterThread", "Could not open the outbox journal", e);
+            }
+            while (!mmStopped) {
+                runPosted();
+                if (mmLink != null) {
+                    heartbeat();
+                }
+                boolean pending = mmCarry != null || mmMessages.size() > 0;
+                if (mmLink != null && pending && mmWindow.hasRoom()) {
+                    mmWindowFullSince = 0;
+                    send();
+                } else if (mmLink != null && pending) {
+                    awaitAck();
+                } else if (mmInbox.isEmpty()) {
+                    if (mmLink != null) {
+                        LockSupport.parkNanos(this, mmHeartbeat.nanosUntilPing(System.nanoTime()));
+                    } else {
+                        LockSupport.park(this);
+                    }
+                }
+            }
+            if (mmJournal != null) {
+                try {
+                    mmJournal.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+
+        private void runPosted() {
+            Runnable task;
+            while ((task = mmInbox.poll()) != null) {
+                task.run();
+            }
+        }
+
+        /**
+         * Wait for the PC to acknowledge something while the window is full,
+         * and drop the connection if it takes too long. The unacknowledged
+         * messages are sent again after reconnecting. On a slow link the
+         * timeout grows to a few of the heartbeat's answer timeouts.
+         */
+        private void awaitAck() {
+            long now = System.nanoTime();
+            if (mmWindowFullSince == 0) {
+                mmWindowFullSince = now;
+            }
+            long timeout = Math.max(ackTimeoutNanos, TimeUnit.MILLISECONDS.toNanos(4 * mmHeartbeat.getTimeoutMillis()));
+            long remaining = timeout - (now - mmWindowFullSince);
+            if (remaining <= 0) {
+                Log.w("WriterThread", mmWindow.size() + " messages not acknowledged, dropping the connection");
+                mmLink.cancel();
+                mmLink = null;
+            } else if (mmInbox.isEmpty()) {
+                LockSupport.parkNanos(this, Math.min(remaining, mmHeartbeat.nanosUntilPing(now)));
+            }
+        }
+
+        /**
+         * Ping the PC when it is due, or drop the connection if too many
+         * pings went unanswered.
+         */
+        private void heartbeat() {
+            long now = System.nanoTime();
+            if (mmHeartbeat.nanosUntilPing(now) > 0) {
+                return;
+            }
+            if (!mmHeartbeat.ping(now, mmLink.mmLastReceivedNanos)) {
+                Log.w("WriterThread", mmHeartbeat.getMisses() + " pings not answered, dropping the connection");
+                mmLink.cancel();
+                mmLink = null;
+                return;
+            }
+            writeControl(mmEncoder.begin(Type.Ping)
+                    .field(Long.toString(SystemClock.elapsedRealtime()))
+                    .end());
+        }
+
+        /**
+         * Answer a ping from the PC with the time it holds.
+         *
+         * @param sent The PC's clock when it sent the ping
+         */
+        void pong(long sent) {
+            if (mmLink == null) {
+                return;
+            }
+            writeControl(mmEncoder.begin(Type.Pong)
+                    .field(Long.toString(sent))
+                    .end());
+        }
+
+        /**
+         * Write a frame outside of the send window, with sequence number 0.
+         */
+        private void writeControl(byte[] frame) {
+            if (!mmLink.write(frame, 0, frame.length)) {
+                mmLink = null;
+            }
+        }
+
+        /**
+         * Start sending on a new connection, unless it was lost or replaced
+         * before this ran.
+         */
+        void onConnected(ConnectedThread link) {
+            ConnectionStateMachine.Snapshot snapshot = mmSession.connection.get();
+            if (link == null || snapshot.getState() != ConnectionStateMachine.State.Connected
+                    || snapshot.getAttempt() != link.mmAttempt) {
+                return;
+            }
+            mmLink = link;
+            mmJournaling = true;
+            mmWindowFullSince = 0;
+            mmHeartbeat.reset(System.nanoTime());
+            mmLastCheckpointRevision = -1;
+            replayJournal();
+            if (retransmit()) {
+                sendSyncRequest();
+            }
+        }
+
+        /**
+         * Stop sending on the connection of an attempt. A later connection is
+         * left alone.
+         */
+        void onDisconnected(long attempt) {
+            if (mmLink != null && mmLink.mmAttempt == attempt) {
+                mmLink = null;
+            }
+        }
+
+        void onAck(int sequence) {
+            if (mmWindow.acknowledge(sequence) > 0) {
+                mmWindowFullSince = 0;
+            }
+        }
+
+        /**
+         * Queue a message, or journal it while disconnected.
+         */
+        void offer(Type type, String key, Priority priority, byte[] message) {
+            if (mmLink != null) {
+                offerMessage(type, key, priority, message);
+            } else if (mmJournaling && mmJournal != null) {
+                if (!mmJournal.append(type, key, priority, message)) {
+                    Log.w("WriterThread", "Message too large for the outbox journal");
+                }
+            }
+        }
+
+        /**
+         * Queue a change of a notification that is already in the state table.
+         * Nothing is kept while disconnected, the PC gets the changes when it
+         * syncs after reconnecting. A change that a resync already covered is
+         * dropped, so an older frame can never overwrite what it sent.
+         *
+         * @param revision The revision of the state table the change made
+         */
+        void offerState(Type type, String key, Priority priority, byte[] message, long revision) {
+            if (revision <= mmSeenRevision) {
+                return;
+            }
+            mmSeenRevision = revision;
+            if (mmLink != null) {
+                offerMessage(type, key, priority, message);
+            }
+        }
+
+        private void offerMessage(Type type, String key, Priority priority, byte[] message) {
+            if (!mmMessages.offer(type, key, priority, message)) {
+                Log.w("WriterThread", "Outbound queue full, dropped " + priority + " message");
+            }
+        }
+
+        /**
+         * Queue everything that was journaled while disconnected, in order.
+         */
+        private void replayJournal() {
+            if (mmJournal == null || mmJournal.isEmpty()) {
+                return;
+            }
+            int count = mmJournal.replay(new OutboxJournal.Consumer() {
+                @Override
+                public void accept(Type type, String key, Priority priority, byte[] frame) {
+                    offerMessage(type, key, priority, frame);
+                }
+            });
+            Log.i("WriterThread", "Replayed " + count + " journaled messages");
+        }
+
+        /**
+         * Send the messages the PC has not acknowledged on the last
+         * connection again, with their original sequence numbers.
+         *
+         * @return false if the write failed
+         */
+        private boolean retransmit() {
+            List<byte[]> pending = new ArrayList<>();
+            int sequence = mmWindow.unacknowledged(pending);
+            if (!pending.isEmpty()) {
+                Log.i("WriterThread", "Sending " + pending.size() + " unacknowledged messages again");
+            }
+            int length = 0;
+            for (byte[] message : pending) {
+                if (length > 0 && length + message.length > batchMaxBytes) {
+                    if (!flush(length)) {
+                        return false;
+                    }
+                    length = 0;
+                }
+                length = copy(message, length, sequence++);
+            }
+            return length == 0 || flush(length);
+        }
+
+        /**
+         * Copy the queued messages into the batch buffer and write them.
+         * Waits up to the linger time for more messages, but never past the
+         * batch size or the room left in the window.
+         */
+        private void send() {
+            int length = 0;
+            long deadline = System.nanoTime() + batchLingerNanos;
+            while (mmWindow.hasRoom()) {
+                OutboundQueue.Entry next = mmCarry != null ? mmCarry : mmMessages.poll();
+                mmCarry = null;
+                if (next == null) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0 || mmStopped) {
+                        break;
+                    }
+                    if (mmInbox.isEmpty()) {
+                        LockSupport.parkNanos(this, remaining);
+                    }
+                    runPosted();
+                    if (mmLink == null) {
+                        // Lost while lingering, the batch is in the window and is sent again
+                        mmSent.clear();
+                        return;
+                    }
+                    continue;
+                }
+                if (next.isSnapshot()) {
+                    // Messages were dropped while the queue was full, send the current state instead
+                    resync(-1, -1, "");
+                    continue;
+                }
+                if (length > 0 && length + next.getFrame().length > batchMaxBytes) {
+                    // Too big for this batch, it starts the next one
+                    mmCarry = next;
+                    break;
+                }
+                length = append(next.getFrame(), length);
+            }
+            if (mmCarry == null) {
+                length = appendCheckpoint(length);
+            }
+            if (length > 0 && !flush(length)) {
+                // The unacknowledged messages are sent again after reconnecting
+                mmLink = null;
+            }
+        }
+
+        private boolean flush(int length) {
+            if (!mmLink.write(mmBatch, 0, length)) {
+                mmSent.clear();
+                return false;
+            }
+            Log.i("WriterThread", mmSent.size() + " messages, " + length + " bytes");
+
+            Handler handler = mHandler;
+            if (handler != null) {
+                // Share the sent messages back to the UI Activity
+                for (byte[] message : mmSent) {
+                    handler.obtainMessage(Constants.MESSAGE_WRITE, -1, -1, message)
+                            .sendToTarget();
+                }
+            }
+            mmSent.clear();
+            return true;
+        }
+
+        /**
+         * Tell the PC which revision it is up to, if the queue has been drained.
+         */
+        private int appendCheckpoint(int length) {
+            if (mmMessages.size() > 0) {
+                return length;
+            }
+            byte[] checkpoint;
+            synchronized (stateTable) {
+                long revision = stateTable.getRevision();
+                // Changes still waiting in the inbox are not queued yet
+                if (revision == mmLastCheckpointRevision || revision != mmSeenRevision) {
+                    return length;
+                }
+                mmLastCheckpointRevision = revision;
+                checkpoint = generateSyncMessage("checkpoint");
+            }
+            return append(checkpoint, length);
+        }
+
+        private int append(byte[] message, int length) {
+            return copy(message, length, mmWindow.add(message));
+        }
+
+        /**
+         * Copy a message into the batch buffer. The sequence number is only
+         * written to the copy, the message itself may be shared.
+         */
+        private int copy(byte[] message, int length, int sequence) {
+            if (mmBatch.length < length + message.length) {
+                mmBatch = Arrays.copyOf(mmBatch, Math.max(length + message.length, mmBatch.length * 2));
+            }
+            System.arraycopy(message, 0, mmBatch, length, message.length);
+            FrameEncoder.setSequence(mmBatch, length, sequence);
+            mmSent.add(message);
+            return length + message.length;
+        }
+
+        /**
+         * Send the state of the phone so that the PC answers with its own.
+         */
+        private void sendSyncRequest() {
+            offerMessage(Type.Sync, "", Priority.Normal, generateSyncMessage("hello"));
+        }
+
+        /**
+         * Bring the PC up to date. If the table still knows every change after
+         * the PC's revision, only those are sent, otherwise every notification
+         * is. A Sync frame with the revision and digest the PC should now have
+         * follows them.
+         *
+         * @param epoch The epoch of the PC's revision, or -1 for none
+         * @param revision The last revision the PC has, or -1 for none
+         * @param digest The digest of the notifications the PC shows, in hex
+         */
+        void resync(long epoch, long revision, String digest) {
+            if (mmLink == null) {
+                return;
+            }
+            List<NotificationStateTable.Record> records;
+            String mode;
+            byte[] sync;
+            int size;
+            // The service thread keeps changing the table, the records and
+            // the Sync frame must describe the same revision
+            synchronized (stateTable) {
+                if (stateTable.hasChangesSince(epoch, revision)) {
+                    mode = "delta";
+                    if (digest.equals(Long.toHexString(stateTable.getDigest()))) {
+                        records = Collections.emptyList();
+                    } else {
+                        records = stateTable.changesSince(revision);
+                    }
+                } else {
+                    mode = "full";
+                    records = stateTable.snapshot();
+                }
+                sync = generateSyncMessage(mode);
+                size = stateTable.size();
+                mmSeenRevision = Math.max(mmSeenRevision, stateTable.getRevision());
+            }
+            for (NotificationStateTable.Record record : records) {
+                String key = record.getKey();
+                if (record.isRemoved()) {
+                    byte[] message = generateMessage(mmEncoder, Type.Remove, key, "", "", "", "", "");
+                    offerMessage(Type.Remove, key, Priority.classify(Type.Remove, key, true), message);
+                } else {
+                    offerMessage(Type.Add, key, Priority.classify(Type.Add, key, true), record.getFrame());
+                }
+            }
+            offerMessage(Type.Sync, "", Priority.Bulk, sync);
+            Log.i("WriterThread", "Sync " + mode + ", " + records.size() + " of " + size + " notifications");
+        }
+
+        /**
+         * Encode a Sync frame. Fields are epoch, revision, digest in hex and mode.
+         */
+        private byte[] generateSyncMessage(String mode) {
+            return mmEncoder.begin(Type.Sync)
+                    .field(Long.toString(stateTable.getEpoch()))
+                    .field(Long.toString(stateTable.getRevision()))
+                    .field(Long.toHexString(stateTable.getDigest()))
+                    .field(mode)
+                    .end();
+        }
+    }
 
     @TargetApi(Build.VERSION_CODES.O)
     private void createNotificationChannel(String channelId, CharSequence channelName, int importance) {
@@ -745,7 +1723,7 @@ public class BluetoothChatService extends Service {
         createNotificationChannel(Constants.WINDOWS_NOTIFICATIONS_CHANNEL_ID, "Windows Notifications", NotificationManager.IMPORTANCE_DEFAULT, WHITE);
     }
 
-    public synchronized void setForegroundNotification(String contextText) {
+    public void setForegroundNotification(String contextText) {
         Intent notificationIntent = new Intent(this, MainActivity.class);
         PendingIntent pendingIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
 
@@ -777,14 +1755,22 @@ public class BluetoothChatService extends Service {
 
         createNotificationChannels();
 
-        setForegroundNotification(getString(R.string.title_not_connected));
+        serviceThread.start();
+        handlerReconnect = new Handler(serviceThread.getLooper());
+        handlerNotification = new Handler(serviceThread.getLooper());
+
+        foregroundText = getString(R.string.title_not_connected);
+        setForegroundNotification(foregroundText);
+
+        // Before the receivers, they run on the service thread and use them
+        defaultSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        channelCache = new RfcommChannelCache(getSharedPreferences("DEVICE", Context.MODE_PRIVATE));
 
         IntentFilter intentFilter = new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED);
-        registerReceiver(mBroadcastReceiver, intentFilter);
+        intentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+        registerReceiver(mBroadcastReceiver, intentFilter, null, handlerReconnect);
 
         intentFilter = new IntentFilter();
-        intentFilter.addAction(Constants.NOTIFICATION_LISTENER_POSTED_ACTION);
-        intentFilter.addAction(Constants.NOTIFICATION_LISTENER_REMOVED_ACTION);
         intentFilter.addAction(Constants.NOTIFICATION_DELETED_ACTION);
         intentFilter.addAction(Telephony.Sms.Intents.SMS_RECEIVED_ACTION);
         intentFilter.addAction("android.intent.action.PHONE_STATE");
@@ -792,9 +1778,16 @@ public class BluetoothChatService extends Service {
         intentFilter.addAction(Intent.ACTION_BATTERY_CHANGED);
         intentFilter.addAction(Intent.ACTION_POWER_CONNECTED);
         intentFilter.addAction(Intent.ACTION_POWER_DISCONNECTED);
-        registerReceiver(mNotificationAction, intentFilter);
+        registerReceiver(mNotificationAction, intentFilter, null, handlerNotification);
 
-        defaultSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        NotificationBus.get().register(busReceiver, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                handlerNotification.post(task);
+            }
+        });
+        // Fill the state table with the notifications that are already showing
+        requestResync();
     }
 
     @Override
@@ -815,12 +1808,23 @@ public class BluetoothChatService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        if (mHandler != null) {
-            mHandler = null;
+        mHandler = null;
+        NotificationBus.get().unregister(busReceiver);
+        handlerNotification.removeCallbacks(publishState);
+        handlerNotification.removeCallbacks(flushThrottle);
+        cancel(mAcceptThread.getAndSet(null));
+        for (Session session : sessions.values()) {
+            session.connection.removeListener(session.listener);
+            handlerReconnect.removeCallbacks(session.reconnect);
         }
 
         unregisterReceiver(mBroadcastReceiver);
         unregisterReceiver(mNotificationAction);
+        for (Session session : sessions.values()) {
+            session.writer.cancel();
+        }
+        commandExecutor.shutdown();
+        serviceThread.quitSafely();
     }
 
     class MyBinder extends Binder {
@@ -829,14 +1833,14 @@ public class BluetoothChatService extends Service {
         }
     }
 
-    public synchronized void setHandler(Handler handler) {
+    public void setHandler(Handler handler) {
         mHandler = handler;
     }
 
     /**
      * Send a sample notification using the NotificationCompat API.
      */
-    public synchronized void showWindowsNotification(String title, int notificationId, String text, String appName, String colorHex) {
+    public void showWindowsNotification(String title, int notificationId, String text, String appName, String colorHex) {
         Notification.Builder builder;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             builder = new Notification.Builder(this, Constants.WINDOWS_NOTIFICATIONS_CHANNEL_ID)
@@ -863,7 +1867,7 @@ public class BluetoothChatService extends Service {
         notificationManager.notify(notificationId, builder.build());
     }
 
-    public synchronized void showDeviceConnectionNotification(String text) {
+    public void showDeviceConnectionNotification(String text) {
         Notification.Builder builder;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             builder = new Notification.Builder(this, Constants.DEVICE_CONNECTION_CHANNEL_ID);
@@ -877,7 +1881,7 @@ public class BluetoothChatService extends Service {
         notificationManager.notify(Constants.INFO_NOTIFICATION_ID, builder.build());
     }
 
-    private synchronized void dismissNotification(final boolean removeAll)
+    private void dismissNotification(final boolean removeAll)
     {
         handlerNotification.postDelayed(new Runnable() {
             @Override
@@ -893,72 +1897,180 @@ public class BluetoothChatService extends Service {
     /**
      * Send a sample notification using the NotificationCompat API.
      */
-    public synchronized void cancelNotification(int notificationId) {
+    public void cancelNotification(int notificationId) {
         notificationManager.cancel(notificationId);
     }
 
-    private synchronized String generateMessage(Type type, String key, String title, String text, String appName, String packageName, String contentIntent) {
-        return Integer.toString(type.getValue()).length() + ";" + key.length() + ";" + title.length() + ";" + text.length() + ";" + appName.length() + ";" + packageName.length() + ";" + contentIntent.length() + ";" +
-                Integer.toString(type.getValue()) + key + appName + packageName + title + text + contentIntent;
+    /**
+     * Encode a message. Fields are always written in the order key, title,
+     * text, app name, package name, content intent.
+     */
+    private static byte[] generateMessage(FrameEncoder encoder, Type type, String key, CharSequence title, CharSequence text, CharSequence appName, String packageName, String contentIntent) {
+        return encoder.begin(type)
+                .field(key)
+                .field(title)
+                .field(text)
+                .field(appName)
+                .field(packageName)
+                .field(contentIntent)
+                .end();
+    }
+
+    private void sendMessage(String key, CharSequence title, CharSequence text, CharSequence appName, String packageName, String contentIntent, boolean resync) {
+        byte[] message = generateMessage(encoder, Type.Add, key, title, text, appName, packageName, contentIntent);
+        sendState(Type.Add, key, message, resync);
     }
 
-    private synchronized void sendMessage(String key, CharSequence title, CharSequence text, CharSequence appName, String packageName, String contentIntent) {
-        String message = generateMessage(Type.Add, key, title.toString(), text.toString(), appName.toString(), packageName, contentIntent);
-        addMessage(message);
+    /**
+     * Send the removal of a notification from the NotificationListener.
+     */
+    private void sendRemoval(String key) {
+        byte[] message = generateMessage(encoder, Type.Remove, key, "", "", "", "", "");
+        sendState(Type.Remove, key, message, false);
     }
 
-    private synchronized void sendMessage(String key, CharSequence title, CharSequence text, CharSequence appName, String packageName) {
-        String message = generateMessage(Type.Add, key, title.toString(), text.toString(), appName.toString(), packageName, "");
-        addMessage(message);
+    private void sendMessage(String key, CharSequence title, CharSequence text, CharSequence appName, String packageName) {
+        byte[] message = generateMessage(encoder, Type.Add, key, title, text, appName, packageName, "");
+        addMessage(Type.Add, key, message, false);
     }
 
-    private synchronized void sendMessage(String key, String contactName, String textMessage) {
-        String message = generateMessage(Type.Add, key, contactName, textMessage, "", "", "");
-        addMessage(message);
+    private void sendMessage(String key, String contactName, String textMessage) {
+        byte[] message = generateMessage(encoder, Type.Add, key, contactName, textMessage, "", "", "");
+        addMessage(Type.Add, key, message, false);
     }
 
-    private synchronized void sendMessage(String key, String contactName) {
-        String message = generateMessage(Type.Add, key, contactName, "", "", "", "");
-        addMessage(message);
+    private void sendMessage(String key, String contactName) {
+        byte[] message = generateMessage(encoder, Type.Add, key, contactName, "", "", "", "");
+        addMessage(Type.Add, key, message, false);
     }
 
-    private synchronized void sendMessage(String key) {
-        String message = generateMessage(Type.Remove, key, "", "", "", "", "");
-        addMessage(message);
+    private void sendMessage(String key) {
+        byte[] message = generateMessage(encoder, Type.Remove, key, "", "", "", "", "");
+        addMessage(Type.Remove, key, message, false);
     }
 
     /**
-     * Sends a message.
+     * Sends a message. Queued messages for the same key are coalesced, and
+     * calls and SMS are sent ahead of ordinary notifications. The message is
+     * handed to the WriterThread of every session, this never blocks.
      *
-     * @param message A string of text to send.
+     * @param type The message type
+     * @param key The notification key the message is about
+     * @param message An encoded frame to send.
+     * @param resync Whether the message only brings the PC up to date after a reconnect
      */
-    private synchronized void addMessage(String message) {
-        // Check that we're actually connected before trying anything
-        if (!connected) {
+    private void addMessage(final Type type, final String key, final byte[] message, boolean resync) {
+        // Check that there's actually something to send
+        if (message.length == 0) {
             return;
         }
+        final Priority priority = Priority.classify(type, key, resync);
+        for (final Session session : sessions.values()) {
+            session.writer.post(new Runnable() {
+                @Override
+                public void run() {
+                    session.writer.offer(type, key, priority, message);
+                }
+            });
+        }
+    }
 
-        // Check that there's actually something to send
-        if (message.length() > 0) {
-            messages.offer(message);
+    /**
+     * Sends a change of a notification that is tracked in the state table.
+     * The table is shared by all sessions and updated once, here on the
+     * service thread; every WriterThread then queues the same frame.
+     */
+    private void sendState(final Type type, final String key, final byte[] message, boolean resync) {
+        boolean changed = type == Type.Remove ? stateTable.remove(key) : stateTable.put(key, message);
+        if (!changed) {
+            return;
+        }
+        final long revision = stateTable.getRevision();
+        final Priority priority = Priority.classify(type, key, resync);
+        for (final Session session : sessions.values()) {
+            session.writer.post(new Runnable() {
+                @Override
+                public void run() {
+                    session.writer.offerState(type, key, priority, message, revision);
+                }
+            });
         }
     }
 
-    private synchronized void sendMessages() {
-        handlerSendMessage.postDelayed(new Runnable(){
-            public void run(){
-                if (!messages.isEmpty() && connected) {
-                    String message = messages.poll();
-                    byte[] send = message.getBytes();
-                    write(send);
-                    Log.i("sendMessages", message);
+    /**
+     * Set how the WriterThreads group queued messages into writes.
+     *
+     * @param maxBytes Largest batch sent with one write
+     * @param lingerMillis How long to wait for more messages before sending a
+     *                     batch, 0 sends as soon as the queue is drained
+     */
+    public void setBatchLimits(int maxBytes, int lingerMillis) {
+        batchMaxBytes = maxBytes;
+        batchLingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+    }
+
+    /**
+     * Set how many sent messages may wait for a PC's acknowledgement, for
+     * every session.
+     *
+     * @param maxFrames Most messages in flight
+     * @param maxBytes Most bytes in flight
+     * @param timeoutMillis How long to wait for an acknowledgement while the
+     *                      window is full before the connection is dropped
+     */
+    public void setSendWindow(int maxFrames, long maxBytes, int timeoutMillis) {
+        windowMaxFrames = maxFrames;
+        windowMaxBytes = maxBytes;
+        ackTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (final Session session : sessions.values()) {
+            // The window belongs to the writer
+            session.writer.post(new Runnable() {
+                @Override
+                public void run() {
+                    session.window.setLimits(windowMaxFrames, windowMaxBytes);
                 }
-                handlerSendMessage.postDelayed(this, 500);
-            }
-        }, 500);
+            });
+        }
+    }
+
+    /**
+     * Set how often the PCs are pinged while connected.
+     *
+     * @param intervalMillis Time between pings
+     * @param missThreshold Pings that may go unanswered before the connection
+     *                      is dropped as dead
+     */
+    public void setHeartbeat(long intervalMillis, int missThreshold) {
+        heartbeatIntervalMillis = intervalMillis;
+        heartbeatMissThreshold = missThreshold;
+        for (final Session session : sessions.values()) {
+            session.heartbeat.setLimits(intervalMillis, missThreshold);
+            // The writer may be parked until the old interval ends
+            session.writer.post(new Runnable() {
+                @Override
+                public void run() {
+                    session.heartbeat.reset(System.nanoTime());
+                }
+            });
+        }
+    }
+
+    /**
+     * Return the throttle of repeated notification updates, to set the
+     * interval of an app and read how many updates were merged.
+     */
+    public NotificationThrottle getThrottle() {
+        return throttle;
+    }
+
+    /**
+     * Ask the NotificationListener to send every active notification again.
+     */
+    private void requestResync() {
+        NotificationBus.get().requestResync();
     }
 
-    private synchronized String getContactName(Context context, String phoneNumber) {
+    private String getContactName(Context context, String phoneNumber) {
         String contactName = phoneNumber;
         try {
             ContentResolver cr = context.getContentResolver();
@@ -0,0 +1,215 @@
+package savickas_ignas.win10notifications;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The connection state of the service, changed only through atomic
+ * compare-and-set transitions so that the connect thread, the reader, the
+ * writer, the reconnect timer and the UI can all drive it without a lock.
+ * <p>
+ * Every connection attempt gets a number. A thread that belongs to an
+ * attempt makes its transitions for that attempt only, so a socket that
+ * fails after it was replaced or stopped cannot change the state any more.
+ * <p>
+ * Listeners are called on the thread that made the transition, after it
+ * took effect, with the snapshots before and after it. Listeners of racing
+ * transitions may be called out of order, so whatever shows the state should
+ * read {@link #get()} rather than rely on the order of the calls.
+ */
+public class ConnectionStateMachine {
+
+    public enum State {
+        // Doing nothing
+        None(0),
+        // Listening for incoming connections
+        Listen(1),
+        // Initiating an outgoing connection
+        Connecting(2),
+        // Connected to a remote device
+        Connected(3),
+        // Bluetooth is off or missing
+        NoBluetooth(4);
+
+        private final int value;
+
+        State(int value) {
+            this.value = value;
+        }
+
+        public int getValue() {
+            return value;
+        }
+    }
+
+    public interface Listener {
+        void onStateChanged(Snapshot previous, Snapshot current);
+    }
+
+    /**
+     * An immutable view of the state.
+     */
+    public static final class Snapshot {
+        private final State state;
+        private final long attempt;
+        private final boolean reconnect;
+
+        Snapshot(State state, long attempt, boolean reconnect) {
+            this.state = state;
+            this.attempt = attempt;
+            this.reconnect = reconnect;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * The number of the connection attempt the state belongs to.
+         */
+        public long getAttempt() {
+            return attempt;
+        }
+
+        /**
+         * Whether the service should connect again when the connection is lost.
+         */
+        public boolean isReconnect() {
+            return reconnect;
+        }
+
+        @Override
+        public String toString() {
+            return state + " #" + attempt + (reconnect ? " reconnect" : "");
+        }
+    }
+
+    private final AtomicReference<Snapshot> current = new AtomicReference<>(new Snapshot(State.None, 0, false));
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * The state that says more about a group of connections, for example the
+     * sessions of several PCs: Connected over Connecting over Listen over
+     * None, and NoBluetooth only if that is all there is.
+     */
+    public static State busiest(State left, State right) {
+        return rank(left) >= rank(right) ? left : right;
+    }
+
+    private static int rank(State state) {
+        return state == State.NoBluetooth ? -1 : state.getValue();
+    }
+
+    public Snapshot get() {
+        return current.get();
+    }
+
+    public State getState() {
+        return current.get().state;
+    }
+
+    public boolean isConnected() {
+        return current.get().state == State.Connected;
+    }
+
+    /**
+     * Start a new connection attempt. Threads of earlier attempts can no
+     * longer change the state.
+     *
+     * @return The number of the new attempt
+     */
+    public long beginAttempt() {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = current.get();
+            next = new Snapshot(State.Connecting, previous.attempt + 1, previous.reconnect);
+        } while (!current.compareAndSet(previous, next));
+        notifyListeners(previous, next);
+        return next.attempt;
+    }
+
+    /**
+     * Start a new connection attempt unless already connected or Bluetooth
+     * is off. Used for a connection that was accepted, so a PC that connects
+     * while the phone is still dialling out takes over, but never replaces a
+     * working connection.
+     *
+     * @return The number of the new attempt, or -1 if none was started
+     */
+    public long tryBeginAttempt() {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = current.get();
+            if (previous.state == State.Connected || previous.state == State.NoBluetooth) {
+                return -1;
+            }
+            next = new Snapshot(State.Connecting, previous.attempt + 1, previous.reconnect);
+        } while (!current.compareAndSet(previous, next));
+        notifyListeners(previous, next);
+        return next.attempt;
+    }
+
+    /**
+     * Change the state of an attempt, if it is still the current attempt and
+     * in the expected state.
+     *
+     * @return false if the state was changed by someone else first
+     */
+    public boolean transition(long attempt, State from, State to) {
+        Snapshot previous = current.get();
+        if (previous.attempt != attempt || previous.state != from) {
+            return false;
+        }
+        Snapshot next = new Snapshot(to, attempt, previous.reconnect);
+        if (!current.compareAndSet(previous, next)) {
+            return false;
+        }
+        notifyListeners(previous, next);
+        return true;
+    }
+
+    /**
+     * Change the state whatever it is, ending the current attempt.
+     */
+    public void set(State to) {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = current.get();
+            next = new Snapshot(to, previous.attempt + 1, previous.reconnect);
+        } while (!current.compareAndSet(previous, next));
+        notifyListeners(previous, next);
+    }
+
+    /**
+     * Set whether to connect again when the connection is lost.
+     */
+    public void setReconnect(boolean reconnect) {
+        Snapshot previous;
+        Snapshot next;
+        do {
+            previous = current.get();
+            if (previous.reconnect == reconnect) {
+                return;
+            }
+            next = new Snapshot(previous.state, previous.attempt, reconnect);
+        } while (!current.compareAndSet(previous, next));
+        notifyListeners(previous, next);
+    }
+
+    private void notifyListeners(Snapshot previous, Snapshot next) {
+        for (Listener listener : listeners) {
+            listener.onStateChanged(previous, next);
+        }
+    }
+}
@@ -22,10 +22,6 @@ public interface Constants {
     public static final int INFO_NOTIFICATION_ID = 30001;
 
     public static final String NOTIFICATION_DELETED_ACTION = "win10notifications.NOTIFICATION_DELETED";
-    public static final String NOTIFICATION_LISTENER_POSTED_ACTION = "win10notifications.NOTIFICATION_LISTENER_POSTED";
-    public static final String NOTIFICATION_LISTENER_REMOVED_ACTION = "win10notifications.NOTIFICATION_LISTENER_REMOVED";
-    public static final String NOTIFICATION_LISTENER_CANCELED_ACTION = "win10notifications.NOTIFICATION_LISTENER_CANCELED";
-    public static final String NOTIFICATION_LISTENER_GET_ALL_ACTION = "win10notifications.NOTIFICATION_LISTENER_GET_ALL";
     public static final String NOTIFICATION_LISTENER_STATE = "win10notifications.NOTIFICATION_LISTENER_STATE";
 
     public static final String FOREGROUND_SERVICE_CHANNEL_ID = "foreground_service";
@@ -0,0 +1,397 @@
+package savickas_ignas.win10notifications;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Incremental decoder for frames written by {@link FrameEncoder}.
+ * <p>
+ * Bytes can be fed in any chunking: a read may hold half a frame or several
+ * frames at once. They are kept in a ring buffer that grows when a frame does
+ * not fit, and complete frames are handed out through {@link #next(Frame)}.
+ * Fields are parsed in place, without splitting or copying substrings.
+ * It is not thread safe.
+ */
+public class FrameDecoder {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 1024 * 1024;
+
+    private final int maxFrameLength;
+    private byte[] ring;
+    private int mask;
+    // Absolute read and write positions, the ring index is position & mask
+    private long head;
+    private long tail;
+    private char[] chars = new char[64];
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_FRAME_LENGTH);
+    }
+
+    public FrameDecoder(int initialCapacity, int maxFrameLength) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 16) - 1) << 1;
+        this.ring = new byte[capacity];
+        this.mask = capacity - 1;
+        this.maxFrameLength = maxFrameLength;
+    }
+
+    /**
+     * Number of buffered bytes that have not been consumed as frames yet.
+     */
+    public int available() {
+        return (int) (tail - head);
+    }
+
+    /**
+     * Copy bytes into the decoder.
+     */
+    public void feed(byte[] data, int offset, int length) {
+        ensureFree(length);
+        while (length > 0) {
+            int index = (int) (tail & mask);
+            int count = Math.min(length, ring.length - index);
+            System.arraycopy(data, offset, ring, index, count);
+            tail += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Read once from the stream straight into the ring buffer.
+     *
+     * @return The number of bytes read
+     * @throws IOException If the stream fails or has reached its end
+     */
+    public int readFrom(InputStream in) throws IOException {
+        if (ring.length - available() == 0) {
+            ensureFree(1);
+        }
+        int index = (int) (tail & mask);
+        // Only the contiguous free part can be read into with one call
+        int free = Math.min(ring.length - available(), ring.length - index);
+        int bytes = in.read(ring, index, free);
+        if (bytes < 0) {
+            throw new IOException("End of stream");
+        }
+        tail += bytes;
+        return bytes;
+    }
+
+    /**
+     * Decode the next complete frame, if one is buffered.
+     *
+     * @param frame Reused holder for the decoded frame. It stays valid until
+     *              the next call to any method of this decoder.
+     * @return false if more bytes are needed
+     * @throws IOException If the buffered bytes are not a valid frame
+     */
+    public boolean next(Frame frame) throws IOException {
+        int available = available();
+        if (available < FrameEncoder.LENGTH_SIZE) {
+            return false;
+        }
+        int length = ((ring[(int) (head & mask)] & 0xFF) << 24)
+                | ((ring[(int) ((head + 1) & mask)] & 0xFF) << 16)
+                | ((ring[(int) ((head + 2) & mask)] & 0xFF) << 8)
+                | (ring[(int) ((head + 3) & mask)] & 0xFF);
+        if (length < FrameEncoder.HEADER_SIZE - FrameEncoder.LENGTH_SIZE || length > maxFrameLength) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (available < FrameEncoder.LENGTH_SIZE + length) {
+            // Make room for the rest of the frame before the next read
+            ensureFree(FrameEncoder.LENGTH_SIZE + length - available);
+            return false;
+        }
+        long position = head + FrameEncoder.LENGTH_SIZE;
+        long end = position + length;
+        int typeValue = ring[(int) (position++ & mask)] & 0xFF;
+        int fieldCount = ring[(int) (position++ & mask)] & 0xFF;
+        int sequence = 0;
+        for (int i = 0; i < 4; i++) {
+            sequence = (sequence << 8) | (ring[(int) (position++ & mask)] & 0xFF);
+        }
+        frame.reset(this, Type.valueOf(typeValue), typeValue, fieldCount, sequence);
+        for (int i = 0; i < fieldCount; i++) {
+            int fieldLength = 0;
+            int shift = 0;
+            int b;
+            do {
+                if (position >= end || shift > 28) {
+                    throw new IOException("Malformed field length");
+                }
+                b = ring[(int) (position++ & mask)] & 0xFF;
+                fieldLength |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (fieldLength < 0 || position + fieldLength > end) {
+                throw new IOException("Field exceeds frame");
+            }
+            frame.offsets[i] = position;
+            frame.lengths[i] = fieldLength;
+            position += fieldLength;
+        }
+        head = end;
+        return true;
+    }
+
+    private void ensureFree(int needed) {
+        int used = available();
+        if (ring.length - used >= needed) {
+            return;
+        }
+        int capacity = ring.length;
+        while (capacity - used < needed) {
+            capacity <<= 1;
+        }
+        byte[] bigger = new byte[capacity];
+        int index = (int) (head & mask);
+        int first = Math.min(used, ring.length - index);
+        System.arraycopy(ring, index, bigger, 0, first);
+        System.arraycopy(ring, 0, bigger, first, used - first);
+        ring = bigger;
+        mask = capacity - 1;
+        head = 0;
+        tail = used;
+    }
+
+    private byte byteAt(long position) {
+        return ring[(int) (position & mask)];
+    }
+
+    private String decodeString(long position, int length) {
+        if (length == 0) {
+            return "";
+        }
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        long end = position + length;
+        int count = 0;
+        while (position < end) {
+            int b = byteAt(position++) & 0xFF;
+            if (b < 0x80) {
+                chars[count++] = (char) b;
+                continue;
+            }
+            int extra;
+            int codePoint;
+            if ((b & 0xE0) == 0xC0) {
+                extra = 1;
+                codePoint = b & 0x1F;
+            } else if ((b & 0xF0) == 0xE0) {
+                extra = 2;
+                codePoint = b & 0x0F;
+            } else if ((b & 0xF8) == 0xF0) {
+                extra = 3;
+                codePoint = b & 0x07;
+            } else {
+                chars[count++] = '\uFFFD';
+                continue;
+            }
+            if (position + extra > end) {
+                chars[count++] = '\uFFFD';
+                break;
+            }
+            boolean valid = true;
+            for (int i = 0; i < extra; i++) {
+                int next = byteAt(position) & 0xFF;
+                if ((next & 0xC0) != 0x80) {
+                    valid = false;
+                    break;
+                }
+                codePoint = (codePoint << 6) | (next & 0x3F);
+                position++;
+            }
+            if (!valid || codePoint > Character.MAX_CODE_POINT) {
+                chars[count++] = '\uFFFD';
+            } else if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+                chars[count++] = Character.highSurrogate(codePoint);
+                chars[count++] = Character.lowSurrogate(codePoint);
+            } else {
+                chars[count++] = (char) codePoint;
+            }
+        }
+        return new String(chars, 0, count);
+    }
+
+    /**
+     * Short human readable form of a single encoded frame, for logs and the
+     * conversation view.
+     */
+    public static String describe(byte[] frame) {
+        FrameDecoder decoder = new FrameDecoder(frame.length, Integer.MAX_VALUE);
+        decoder.feed(frame, 0, frame.length);
+        Frame decoded = new Frame();
+        try {
+            if (!decoder.next(decoded)) {
+                return "";
+            }
+        } catch (IOException e) {
+            return "";
+        }
+        return decoded.toString();
+    }
+
+    /**
+     * A decoded frame. Fields are read lazily from the decoder's buffer.
+     */
+    public static class Frame {
+        private FrameDecoder decoder;
+        private Type type;
+        private int typeValue;
+        private int fieldCount;
+        private int sequence;
+        private long[] offsets = new long[8];
+        private int[] lengths = new int[8];
+
+        void reset(FrameDecoder decoder, Type type, int typeValue, int fieldCount, int sequence) {
+            this.decoder = decoder;
+            this.type = type;
+            this.typeValue = typeValue;
+            this.fieldCount = fieldCount;
+            this.sequence = sequence;
+            if (offsets.length < fieldCount) {
+                offsets = new long[fieldCount];
+                lengths = new int[fieldCount];
+            }
+        }
+
+        /**
+         * @return The frame type, or null if this build does not know it
+         */
+        public Type getType() {
+            return type;
+        }
+
+        public int getTypeValue() {
+            return typeValue;
+        }
+
+        public int getFieldCount() {
+            return fieldCount;
+        }
+
+        public int getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Byte length of a field. Missing fields have length 0.
+         */
+        public int getLength(int field) {
+            return field < fieldCount ? lengths[field] : 0;
+        }
+
+        /**
+         * A field decoded from UTF-8. Missing fields are returned as "".
+         */
+        public String getString(int field) {
+            if (field >= fieldCount) {
+                return "";
+            }
+            return decoder.decodeString(offsets[field], lengths[field]);
+        }
+
+        /**
+         * Whether the field is a decimal int, optionally signed.
+         */
+        public boolean isInt(int field) {
+            int length = getLength(field);
+            if (length == 0 || length > 11) {
+                return false;
+            }
+            long position = offsets[field];
+            byte first = decoder.byteAt(position);
+            int i = first == '-' || first == '+' ? 1 : 0;
+            if (i == length) {
+                return false;
+            }
+            long value = 0;
+            for (; i < length; i++) {
+                byte b = decoder.byteAt(position + i);
+                if (b < '0' || b > '9') {
+                    return false;
+                }
+                value = value * 10 + (b - '0');
+            }
+            return value <= (first == '-' ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE);
+        }
+
+        /**
+         * Parse a field as a decimal int without creating a String.
+         *
+         * @return The value, or defaultValue if the field is not an int
+         */
+        public int getInt(int field, int defaultValue) {
+            if (!isInt(field)) {
+                return defaultValue;
+            }
+            long position = offsets[field];
+            int length = lengths[field];
+            byte first = decoder.byteAt(position);
+            boolean negative = first == '-';
+            int i = negative || first == '+' ? 1 : 0;
+            long value = 0;
+            for (; i < length; i++) {
+                value = value * 10 + (decoder.byteAt(position + i) - '0');
+            }
+            return (int) (negative ? -value : value);
+        }
+
+        /**
+         * Parse a field as a non-negative decimal long without creating a String.
+         *
+         * @return The value, or defaultValue if the field is not a number or does not fit in a long
+         */
+        public long getLong(int field, long defaultValue) {
+            int length = getLength(field);
+            if (length == 0 || length > 19) {
+                return defaultValue;
+            }
+            long position = offsets[field];
+            long value = 0;
+            for (int i = 0; i < length; i++) {
+                byte b = decoder.byteAt(position + i);
+                if (b < '0' || b > '9') {
+                    return defaultValue;
+                }
+                int digit = b - '0';
+                if (value > (Long.MAX_VALUE - digit) / 10) {
+                    // Larger than a long
+                    return defaultValue;
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
+        /**
+         * Parse a field holding a sequence number, such as the one of an
+         * Ack. It may be written as a signed int or as the unsigned 32 bit
+         * value, both give the same sequence number once the numbers wrap.
+         *
+         * @return The sequence number, or defaultValue if the field is neither
+         */
+        public long getSequenceField(int field, long defaultValue) {
+            if (isInt(field)) {
+                return getInt(field, 0);
+            }
+            long value = getLong(field, -1);
+            return value > Integer.MAX_VALUE && value <= 0xFFFFFFFFL ? (int) value : defaultValue;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(type != null ? type.name() : Integer.toString(typeValue));
+            for (int i = 0; i < fieldCount; i++) {
+                if (lengths[i] > 0) {
+                    builder.append(' ').append(getString(i));
+                }
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package savickas_ignas.win10notifications;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes outgoing messages into binary frames.
+ * <p>
+ * Frame layout:
+ * <pre>
+ * length      4 bytes, big endian, size of everything after this field
+ * type        1 byte, {@link Type#getValue()}
+ * fieldCount  1 byte
+ * sequence    4 bytes, big endian, set when the frame is sent, 0 until then
+ * fields      fieldCount times: varint byte length followed by UTF-8 bytes
+ * </pre>
+ * The encoder writes straight into a single buffer that is reused between
+ * frames, so encoding does not create any temporary strings or byte arrays.
+ * It is not thread safe.
+ */
+public class FrameEncoder {
+
+    // Size of the length prefix in front of every frame
+    public static final int LENGTH_SIZE = 4;
+    // Offset of the sequence number in every frame
+    public static final int SEQUENCE_OFFSET = LENGTH_SIZE + 2;
+    // Size of the length prefix, type, field count and sequence number
+    public static final int HEADER_SIZE = SEQUENCE_OFFSET + 4;
+
+    private static final int DEFAULT_CAPACITY = 512;
+
+    private ByteBuffer buffer;
+    private int fieldCount;
+
+    public FrameEncoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public FrameEncoder(int initialCapacity) {
+        buffer = ByteBuffer.allocate(Math.max(initialCapacity, HEADER_SIZE));
+    }
+
+    /**
+     * Start a new frame, discarding anything that was not finished.
+     *
+     * @param type The message type written to the header
+     */
+    public FrameEncoder begin(Type type) {
+        buffer.clear();
+        buffer.position(HEADER_SIZE);
+        buffer.put(LENGTH_SIZE, (byte) type.getValue());
+        buffer.putInt(SEQUENCE_OFFSET, 0);
+        fieldCount = 0;
+        return this;
+    }
+
+    /**
+     * Append a field to the current frame. A null value is written as an empty field.
+     */
+    public FrameEncoder field(CharSequence value) {
+        if (fieldCount == 0xFF) {
+            throw new IllegalStateException("Too many fields in frame");
+        }
+        int length = value == null ? 0 : utf8Length(value);
+        ensureRemaining(varintLength(length) + length);
+        writeVarint(buffer, length);
+        if (length > 0) {
+            writeUtf8(buffer, value);
+        }
+        fieldCount++;
+        return this;
+    }
+
+    /**
+     * Finish the current frame.
+     *
+     * @return The buffer holding the frame, flipped for reading. It is only
+     * valid until the next call to {@link #begin(Type)}.
+     */
+    public ByteBuffer endBuffer() {
+        buffer.putInt(0, buffer.position() - LENGTH_SIZE);
+        buffer.put(LENGTH_SIZE + 1, (byte) fieldCount);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Finish the current frame and copy it out.
+     *
+     * @return The complete frame, including the length prefix
+     */
+    public byte[] end() {
+        ByteBuffer frame = endBuffer();
+        return Arrays.copyOf(frame.array(), frame.limit());
+    }
+
+    /**
+     * Write the sequence number into a frame that is already encoded, for
+     * example a copy of it in a batch buffer.
+     *
+     * @param buffer The buffer holding the frame
+     * @param offset Where the frame starts in buffer
+     */
+    public static void setSequence(byte[] buffer, int offset, int sequence) {
+        int position = offset + SEQUENCE_OFFSET;
+        buffer[position] = (byte) (sequence >>> 24);
+        buffer[position + 1] = (byte) (sequence >>> 16);
+        buffer[position + 2] = (byte) (sequence >>> 8);
+        buffer[position + 3] = (byte) sequence;
+    }
+
+    private void ensureRemaining(int needed) {
+        if (buffer.remaining() >= needed) {
+            return;
+        }
+        int capacity = buffer.capacity();
+        while (capacity - buffer.position() < needed) {
+            capacity *= 2;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+    }
+
+    /**
+     * Number of bytes needed to encode the value as UTF-8. Unpaired
+     * surrogates are counted as the single replacement byte '?'.
+     */
+    public static int utf8Length(CharSequence value) {
+        int length = 0;
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < count
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static void writeUtf8(ByteBuffer out, CharSequence value) {
+        int count = value.length();
+        for (int i = 0; i < count; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < count
+                    && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                out.put((byte) (0xF0 | (codePoint >> 18)));
+                out.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                out.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');
+            } else {
+                out.put((byte) (0xE0 | (c >> 12)));
+                out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    public static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    public static void writeVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+}
@@ -0,0 +1,132 @@
+package savickas_ignas.win10notifications;
+
+/**
+ * Keeps track of the pings sent to the PC and what their answers say about
+ * the link.
+ * <p>
+ * A {@link Type#Ping} frame holds the time since the phone booted in
+ * milliseconds, and the PC answers with a {@link Type#Pong} frame holding
+ * the same time. The round trip time is measured from that and smoothed like
+ * TCP smooths its round trip time.
+ * <p>
+ * Anything received from the PC shows that the link is alive, so pings only
+ * count as missed while nothing at all arrives. Once the miss threshold is
+ * reached the link is taken as dead, long before a read on a socket to a
+ * sleeping PC would fail.
+ * <p>
+ * Pings and pongs carry sequence number 0. They are not in the
+ * {@link SendWindow}, so they go out even when the window is full, and the
+ * PC does not acknowledge them.
+ */
+public class Heartbeat {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+    public static final int DEFAULT_MISS_THRESHOLD = 3;
+    // Lower bound of the timeout, a fast link must not make it hair-trigger
+    public static final long MIN_TIMEOUT_MILLIS = 200;
+
+    private long intervalNanos = DEFAULT_INTERVAL_MILLIS * 1000000;
+    private int missThreshold = DEFAULT_MISS_THRESHOLD;
+    private long nextPingNanos;
+    private long lastPingNanos;
+    // Pings sent since anything was last received
+    private int misses;
+    // Smoothed round trip time and its mean deviation, -1 before the first pong
+    private double rttMillis = -1;
+    private double rttVarMillis;
+    private long pongCount;
+
+    /**
+     * Set how often to ping and how many pings may go unanswered.
+     */
+    public synchronized void setLimits(long intervalMillis, int missThreshold) {
+        this.intervalNanos = intervalMillis * 1000000;
+        this.missThreshold = missThreshold;
+    }
+
+    /**
+     * Start over on a new connection. The estimates are kept, the PC is
+     * likely the same.
+     */
+    public synchronized void reset(long nowNanos) {
+        misses = 0;
+        lastPingNanos = nowNanos;
+        nextPingNanos = nowNanos + intervalNanos;
+    }
+
+    /**
+     * How long until the next ping is due, 0 if it is due now.
+     */
+    public synchronized long nanosUntilPing(long nowNanos) {
+        return Math.max(0, nextPingNanos - nowNanos);
+    }
+
+    /**
+     * Account for a ping that is due.
+     *
+     * @param nowNanos The current {@link System#nanoTime()}
+     * @param lastReceivedNanos When anything was last received from the PC
+     * @return false if too many pings went unanswered, the link is dead then
+     * and no ping should be sent
+     */
+    public synchronized boolean ping(long nowNanos, long lastReceivedNanos) {
+        if (lastReceivedNanos - lastPingNanos >= 0) {
+            misses = 0;
+        }
+        if (misses >= missThreshold) {
+            return false;
+        }
+        misses++;
+        lastPingNanos = nowNanos;
+        nextPingNanos = nowNanos + intervalNanos;
+        return true;
+    }
+
+    /**
+     * Take the times of an answered ping, both in milliseconds since boot.
+     *
+     * @param sent When the ping was sent, as echoed by the PC
+     * @param now When the pong arrived
+     */
+    public synchronized void onPong(long sent, long now) {
+        long rtt = now - sent;
+        if (sent <= 0 || rtt < 0) {
+            // Not the time of a ping this phone sent
+            return;
+        }
+        if (rttMillis < 0) {
+            rttMillis = rtt;
+            rttVarMillis = rtt / 2.0;
+        } else {
+            rttVarMillis += (Math.abs(rttMillis - rtt) - rttVarMillis) / 4;
+            rttMillis += (rtt - rttMillis) / 8;
+        }
+        pongCount++;
+    }
+
+    /**
+     * Smoothed round trip time, -1 before the first pong.
+     */
+    public synchronized long getRttMillis() {
+        return Math.round(rttMillis);
+    }
+
+    /**
+     * How long an answer may take before it is late, from the round trip
+     * time and its deviation. The ping interval before the first pong.
+     */
+    public synchronized long getTimeoutMillis() {
+        if (rttMillis < 0) {
+            return intervalNanos / 1000000;
+        }
+        return Math.max(MIN_TIMEOUT_MILLIS, Math.round(rttMillis + 4 * rttVarMillis));
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    public synchronized long getPongCount() {
+        return pongCount;
+    }
+}
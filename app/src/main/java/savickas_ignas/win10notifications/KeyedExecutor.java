@@ -0,0 +1,105 @@
+package savickas_ignas.win10notifications;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs tasks on an executor, one at a time per key and in the order they
+ * were given, while tasks for different keys run in parallel.
+ * <p>
+ * The number of tasks waiting or running is bounded. When it is reached,
+ * {@link #execute(Object, Runnable)} waits for a task to finish, so a
+ * producer that outpaces the handlers is slowed down instead of piling up
+ * work without limit.
+ */
+public class KeyedExecutor {
+
+    private final Executor executor;
+    private final int maxPending;
+    private final Semaphore permits;
+    // Tasks waiting behind the one that is running, for every key that has one running
+    private final Map<Object, ArrayDeque<Runnable>> waiting = new HashMap<>();
+
+    /**
+     * @param executor Runs the tasks
+     * @param maxPending Most tasks waiting or running at once
+     */
+    public KeyedExecutor(Executor executor, int maxPending) {
+        this.executor = executor;
+        this.maxPending = maxPending;
+        this.permits = new Semaphore(maxPending);
+    }
+
+    /**
+     * Run a task after every task given earlier for the same key.
+     *
+     * @throws InterruptedException If interrupted while waiting for room
+     * @throws RejectedExecutionException If the executor is shut down
+     */
+    public void execute(Object key, Runnable task) throws InterruptedException {
+        permits.acquire();
+        synchronized (waiting) {
+            ArrayDeque<Runnable> tasks = waiting.get(key);
+            if (tasks != null) {
+                tasks.addLast(task);
+                return;
+            }
+            waiting.put(key, new ArrayDeque<Runnable>());
+        }
+        if (!submit(key, task)) {
+            throw new RejectedExecutionException("Executor is shut down");
+        }
+    }
+
+    /**
+     * Number of tasks waiting or running.
+     */
+    public int pending() {
+        return maxPending - permits.availablePermits();
+    }
+
+    /**
+     * @return false if the executor rejected the task
+     */
+    private boolean submit(final Object key, final Runnable task) {
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        next(key);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            // Most likely shut down, drop what is waiting for this key
+            synchronized (waiting) {
+                ArrayDeque<Runnable> tasks = waiting.remove(key);
+                permits.release(1 + (tasks != null ? tasks.size() : 0));
+            }
+            return false;
+        }
+    }
+
+    private void next(Object key) {
+        permits.release();
+        Runnable task;
+        synchronized (waiting) {
+            ArrayDeque<Runnable> tasks = waiting.get(key);
+            task = tasks.pollFirst();
+            if (task == null) {
+                waiting.remove(key);
+                return;
+            }
+        }
+        // Submitted again rather than run here, so a busy key does not hold a thread
+        submit(key, task);
+    }
+}
@@ -0,0 +1,93 @@
+package savickas_ignas.win10notifications;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Counters of one connection. The byte counts are kept by wrapping the
+ * streams of the transport, each stream is used by one thread only.
+ */
+public class LinkMetrics {
+
+    private volatile long connectMillis = -1;
+    private volatile String connectPath = "";
+    private volatile long bytesRead;
+    private volatile long bytesWritten;
+
+    /**
+     * How long connecting took, -1 until connected.
+     */
+    public long getConnectMillis() {
+        return connectMillis;
+    }
+
+    void setConnectMillis(long connectMillis) {
+        this.connectMillis = connectMillis;
+    }
+
+    /**
+     * How the connection was made, such as through SDP or a cached channel.
+     */
+    public String getConnectPath() {
+        return connectPath;
+    }
+
+    void setConnectPath(String connectPath) {
+        this.connectPath = connectPath;
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = in.read();
+                if (b >= 0) {
+                    bytesRead++;
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int count) throws IOException {
+                int bytes = in.read(buffer, offset, count);
+                if (bytes > 0) {
+                    bytesRead += bytes;
+                }
+                return bytes;
+            }
+        };
+    }
+
+    OutputStream wrap(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesWritten++;
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int count) throws IOException {
+                // FilterOutputStream would write byte by byte
+                out.write(buffer, offset, count);
+                bytesWritten += count;
+            }
+        };
+    }
+
+    @Override
+    public String toString() {
+        return "connect via " + connectPath + " " + connectMillis + " ms, " + bytesRead + " bytes read, " + bytesWritten + " bytes written";
+    }
+}
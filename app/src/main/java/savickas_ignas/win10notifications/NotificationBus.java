@@ -0,0 +1,184 @@
+package savickas_ignas.win10notifications;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Passes notifications from the NotificationListener to the
+ * BluetoothChatService, and requests back, inside the app's process.
+ * <p>
+ * Both services run in the same process, so a global broadcast for every
+ * notification only added a round trip through the system, parceled the
+ * content into an Intent, and let any app that registered for the action
+ * read it. Here each side registers a target with the executor to run it
+ * on, and an event is a single task on that executor. Events for a side
+ * that is not registered are dropped and counted, as a broadcast nobody
+ * receives would be.
+ */
+public final class NotificationBus {
+
+    /**
+     * The side of the BluetoothChatService.
+     */
+    public interface Receiver {
+        void onPosted(NotificationRecord record);
+
+        void onRemoved(String key);
+    }
+
+    /**
+     * The side of the NotificationListener.
+     */
+    public interface Source {
+        /**
+         * Dismiss a notification on the phone, it was opened or dismissed on the PC.
+         */
+        void onCancel(String key);
+
+        /**
+         * Post every notification that is showing again.
+         */
+        void onResyncRequested();
+    }
+
+    private static final class Endpoint<T> {
+        private final T target;
+        private final Executor executor;
+
+        Endpoint(T target, Executor executor) {
+            this.target = target;
+            this.executor = executor;
+        }
+    }
+
+    private static final NotificationBus DEFAULT = new NotificationBus();
+
+    private final AtomicReference<Endpoint<Receiver>> receiver = new AtomicReference<>();
+    private final AtomicReference<Endpoint<Source>> source = new AtomicReference<>();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * The bus shared by the services of the app.
+     */
+    public static NotificationBus get() {
+        return DEFAULT;
+    }
+
+    /**
+     * Set the receiver, replacing any earlier one.
+     *
+     * @param executor Runs the receiver, such as a Handler's post
+     */
+    public void register(Receiver receiver, Executor executor) {
+        this.receiver.set(new Endpoint<>(receiver, executor));
+    }
+
+    /**
+     * Remove a receiver, unless it was already replaced.
+     */
+    public void unregister(Receiver receiver) {
+        Endpoint<Receiver> endpoint = this.receiver.get();
+        if (endpoint != null && endpoint.target == receiver) {
+            this.receiver.compareAndSet(endpoint, null);
+        }
+    }
+
+    /**
+     * Set the source, replacing any earlier one.
+     *
+     * @param executor Runs the source, such as a Handler's post
+     */
+    public void register(Source source, Executor executor) {
+        this.source.set(new Endpoint<>(source, executor));
+    }
+
+    /**
+     * Remove a source, unless it was already replaced.
+     */
+    public void unregister(Source source) {
+        Endpoint<Source> endpoint = this.source.get();
+        if (endpoint != null && endpoint.target == source) {
+            this.source.compareAndSet(endpoint, null);
+        }
+    }
+
+    /**
+     * @return false if there is no receiver
+     */
+    public boolean post(final NotificationRecord record) {
+        final Endpoint<Receiver> endpoint = receiver.get();
+        if (endpoint == null) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        endpoint.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                endpoint.target.onPosted(record);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return false if there is no receiver
+     */
+    public boolean remove(final String key) {
+        final Endpoint<Receiver> endpoint = receiver.get();
+        if (endpoint == null) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        endpoint.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                endpoint.target.onRemoved(key);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return false if there is no source
+     */
+    public boolean cancel(final String key) {
+        final Endpoint<Source> endpoint = source.get();
+        if (endpoint == null) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        endpoint.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                endpoint.target.onCancel(key);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * @return false if there is no source
+     */
+    public boolean requestResync() {
+        final Endpoint<Source> endpoint = source.get();
+        if (endpoint == null) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        endpoint.executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                endpoint.target.onResyncRequested();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Number of events dropped because their side was not registered.
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+}
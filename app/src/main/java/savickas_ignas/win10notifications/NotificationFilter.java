@@ -0,0 +1,292 @@
+package savickas_ignas.win10notifications;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Decides which notifications of the selected apps are sent to the PC.
+ * <p>
+ * Rules are written one per line, as an action followed by conditions that
+ * must all hold, and the first rule that matches decides. A notification
+ * that no rule matches is sent. Lines starting with # are comments.
+ * <pre>
+ * drop ongoing
+ * allow package=com.whatsapp
+ * drop summary
+ * drop package=com.google.android.gm title~"^Sending"
+ * </pre>
+ * Conditions are package=, channel= and category= for an exact match,
+ * title~ and text~ for a regular expression found anywhere in the text, and
+ * the flags ongoing, summary, progress and silent, which may be negated with
+ * a leading !. A value with spaces is put in double quotes.
+ * <p>
+ * The rules are compiled once into a table from package to the rules that
+ * can apply to it, so a notification is only checked against those, with
+ * the flags compared as bit masks and the patterns tried last.
+ */
+public final class NotificationFilter {
+
+    public enum Action {
+        Allow,
+        Drop
+    }
+
+    public static final int FLAG_ONGOING = 1;
+    public static final int FLAG_SUMMARY = 1 << 1;
+    public static final int FLAG_PROGRESS = 1 << 2;
+    // Posted to a channel the user made silent
+    public static final int FLAG_SILENT = 1 << 3;
+
+    /**
+     * Rules used until the user writes their own: the notifications that
+     * stay on the phone and keep changing are not sent. Kept the same as
+     * the pref_default_filter_rules string.
+     */
+    public static final String DEFAULT_RULES = "drop ongoing\ndrop progress\ndrop summary\ndrop silent";
+
+    public static final NotificationFilter ALLOW_ALL = new NotificationFilter(
+            Collections.<String, Rule[]>emptyMap(), new Rule[0], 0);
+
+    private static final class Rule {
+        private final Action action;
+        private final String packageName;
+        private final String channelId;
+        private final String category;
+        private final int required;
+        private final int forbidden;
+        private final Pattern title;
+        private final Pattern text;
+
+        Rule(Action action, String packageName, String channelId, String category,
+             int required, int forbidden, Pattern title, Pattern text) {
+            this.action = action;
+            this.packageName = packageName;
+            this.channelId = channelId;
+            this.category = category;
+            this.required = required;
+            this.forbidden = forbidden;
+            this.title = title;
+            this.text = text;
+        }
+
+        boolean matches(String channelId, String category, int flags, CharSequence title, CharSequence text) {
+            return (flags & required) == required
+                    && (flags & forbidden) == 0
+                    && (this.channelId == null || this.channelId.equals(channelId))
+                    && (this.category == null || this.category.equals(category))
+                    && (this.title == null || (title != null && this.title.matcher(title).find()))
+                    && (this.text == null || (text != null && this.text.matcher(text).find()));
+        }
+    }
+
+    // The rules for every package that some rule names, with the rules for any package among them
+    private final Map<String, Rule[]> byPackage;
+    // The rules for any package
+    private final Rule[] anyPackage;
+    private final int usedFlags;
+
+    private NotificationFilter(Map<String, Rule[]> byPackage, Rule[] anyPackage, int usedFlags) {
+        this.byPackage = byPackage;
+        this.anyPackage = anyPackage;
+        this.usedFlags = usedFlags;
+    }
+
+    /**
+     * Compile rules.
+     *
+     * @throws IllegalArgumentException If a rule cannot be read, with its line number
+     */
+    public static NotificationFilter compile(String rules) {
+        List<Rule> parsed = new ArrayList<>();
+        String[] lines = rules != null ? rules.split("\n") : new String[0];
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            try {
+                parsed.add(parse(line));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Line " + (i + 1) + ": " + e.getMessage(), e);
+            }
+        }
+        if (parsed.isEmpty()) {
+            return ALLOW_ALL;
+        }
+
+        List<Rule> anyPackage = new ArrayList<>();
+        Map<String, List<Rule>> byPackage = new HashMap<>();
+        int usedFlags = 0;
+        for (Rule rule : parsed) {
+            usedFlags |= rule.required | rule.forbidden;
+            if (rule.packageName == null) {
+                anyPackage.add(rule);
+                // Keeps its place among the rules of every package
+                for (List<Rule> packageRules : byPackage.values()) {
+                    packageRules.add(rule);
+                }
+            } else {
+                List<Rule> packageRules = byPackage.get(rule.packageName);
+                if (packageRules == null) {
+                    packageRules = new ArrayList<>(anyPackage);
+                    byPackage.put(rule.packageName, packageRules);
+                }
+                packageRules.add(rule);
+            }
+        }
+        Map<String, Rule[]> table = new HashMap<>();
+        for (Map.Entry<String, List<Rule>> entry : byPackage.entrySet()) {
+            table.put(entry.getKey(), entry.getValue().toArray(new Rule[entry.getValue().size()]));
+        }
+        return new NotificationFilter(table, anyPackage.toArray(new Rule[anyPackage.size()]), usedFlags);
+    }
+
+    private static Rule parse(String line) {
+        List<String> tokens = tokenize(line);
+        if (tokens.isEmpty()) {
+            throw new IllegalArgumentException("Expected allow or drop");
+        }
+        Action action;
+        switch (tokens.get(0)) {
+            case "allow":
+                action = Action.Allow;
+                break;
+            case "drop":
+                action = Action.Drop;
+                break;
+            default:
+                throw new IllegalArgumentException("Expected allow or drop, got " + tokens.get(0));
+        }
+        String packageName = null;
+        String channelId = null;
+        String category = null;
+        int required = 0;
+        int forbidden = 0;
+        Pattern title = null;
+        Pattern text = null;
+        for (String token : tokens.subList(1, tokens.size())) {
+            int equals = token.indexOf('=');
+            int tilde = token.indexOf('~');
+            if (equals > 0 && (tilde < 0 || equals < tilde)) {
+                String name = token.substring(0, equals);
+                String value = token.substring(equals + 1);
+                switch (name) {
+                    case "package":
+                        packageName = value;
+                        break;
+                    case "channel":
+                        channelId = value;
+                        break;
+                    case "category":
+                        category = value;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown condition " + name);
+                }
+            } else if (tilde > 0) {
+                String name = token.substring(0, tilde);
+                Pattern pattern;
+                try {
+                    pattern = Pattern.compile(token.substring(tilde + 1));
+                } catch (PatternSyntaxException e) {
+                    throw new IllegalArgumentException("Bad pattern for " + name, e);
+                }
+                switch (name) {
+                    case "title":
+                        title = pattern;
+                        break;
+                    case "text":
+                        text = pattern;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown condition " + name);
+                }
+            } else {
+                boolean negated = token.startsWith("!");
+                int flag = flag(negated ? token.substring(1) : token);
+                if (negated) {
+                    forbidden |= flag;
+                } else {
+                    required |= flag;
+                }
+            }
+        }
+        return new Rule(action, packageName, channelId, category, required, forbidden, title, text);
+    }
+
+    private static int flag(String name) {
+        switch (name) {
+            case "ongoing":
+                return FLAG_ONGOING;
+            case "summary":
+                return FLAG_SUMMARY;
+            case "progress":
+                return FLAG_PROGRESS;
+            case "silent":
+                return FLAG_SILENT;
+            default:
+                throw new IllegalArgumentException("Unknown condition " + name);
+        }
+    }
+
+    /**
+     * Split a rule at whitespace, keeping what is in double quotes together
+     * and dropping the quotes.
+     */
+    private static List<String> tokenize(String line) {
+        List<String> tokens = new ArrayList<>();
+        StringBuilder token = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (token.length() > 0) {
+                    tokens.add(token.toString());
+                    token.setLength(0);
+                }
+            } else {
+                token.append(c);
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unclosed quote");
+        }
+        if (token.length() > 0) {
+            tokens.add(token.toString());
+        }
+        return tokens;
+    }
+
+    /**
+     * Whether any rule looks at a flag, so the caller can skip working out
+     * the ones that do not matter.
+     */
+    public boolean uses(int flag) {
+        return (usedFlags & flag) != 0;
+    }
+
+    /**
+     * Decide what to do with a notification.
+     *
+     * @param flags The FLAG_ constants that apply to it
+     */
+    public Action decide(String packageName, String channelId, String category, int flags, CharSequence title, CharSequence text) {
+        Rule[] rules = byPackage.get(packageName);
+        if (rules == null) {
+            rules = anyPackage;
+        }
+        for (Rule rule : rules) {
+            if (rule.matches(channelId, category, flags, title, text)) {
+                return rule.action;
+            }
+        }
+        return Action.Allow;
+    }
+}
@@ -1,6 +1,7 @@
 package savickas_ignas.win10notifications;
 
 import android.app.Notification;
+import android.app.NotificationManager;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
@@ -9,13 +10,19 @@ import android.content.SharedPreferences;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.preference.PreferenceManager;
 import android.service.notification.NotificationListenerService;
 import android.service.notification.StatusBarNotification;
+import android.util.Log;
 import android.widget.Toast;
 
-import java.util.Objects;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 
 public class NotificationListener extends NotificationListenerService {
@@ -23,28 +30,53 @@ public class NotificationListener extends NotificationListenerService {
     private SharedPreferences sharedPreferences;
     private SharedPreferences defaultSharedPreferences;
     private PackageManager packageManager;
+    // Swapped for a new one whenever the list of apps changes
+    private volatile AppFilter appFilter = AppFilter.EMPTY;
+    // Swapped for a new one whenever the filter rules change
+    private volatile NotificationFilter notificationFilter = NotificationFilter.ALLOW_ALL;
+    // Notifications sent to the BluetoothChatService and not removed since,
+    // only used on the main thread
+    private final Set<String> sentKeys = new HashSet<>();
+    private final NotificationListenerService.Ranking ranking = new NotificationListenerService.Ranking();
+    private AppLabelCache appLabels;
 
-    private final BroadcastReceiver mNotificationListener = new BroadcastReceiver() {
+    // A field, SharedPreferences only keeps a weak reference to its listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener preferenceListener = new SharedPreferences.OnSharedPreferenceChangeListener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
+        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
+            if ("apps_list".equals(key)) {
+                loadAppFilter();
+            } else if ("filter_rules".equals(key)) {
+                loadNotificationFilter();
+            }
+        }
+    };
 
-            assert action != null;
-            if (action.equals(Constants.NOTIFICATION_LISTENER_CANCELED_ACTION)) {
-                String key = intent.getStringExtra("key");
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                    cancelNotification(key);
-                }
-                else {
-                    String[] keyParts = key.split("|", -1);
-                    cancelNotification(keyParts[0], keyParts[1], Integer.parseInt(keyParts[2]));
-                }
+    // Requests from the BluetoothChatService, run on the main thread
+    private final NotificationBus.Source busSource = new NotificationBus.Source() {
+        @Override
+        public void onCancel(String key) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                cancelNotification(key);
             }
-            else if (action.equals(Constants.NOTIFICATION_LISTENER_GET_ALL_ACTION)) {
-                StatusBarNotification[] statusBarNotifications = getActiveNotifications();
-                for (StatusBarNotification statusBarNotification : statusBarNotifications) {
-                    sendNotification(statusBarNotification, Constants.NOTIFICATION_LISTENER_POSTED_ACTION);
-                }
+            else {
+                String[] keyParts = key.split("|", -1);
+                cancelNotification(keyParts[0], keyParts[1], Integer.parseInt(keyParts[2]));
+            }
+        }
+
+        @Override
+        public void onResyncRequested() {
+            sendActiveNotifications();
+        }
+    };
+
+    // The name of an app may change when it is updated
+    private final BroadcastReceiver mPackageChanged = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() != null) {
+                appLabels.invalidate(intent.getData().getSchemeSpecificPart());
             }
         }
     };
@@ -54,11 +86,35 @@ public class NotificationListener extends NotificationListenerService {
         super.onCreate();
         sharedPreferences = getSharedPreferences("DEVICE", Context.MODE_PRIVATE);
         defaultSharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
+        defaultSharedPreferences.registerOnSharedPreferenceChangeListener(preferenceListener);
+        loadAppFilter();
+        loadNotificationFilter();
         packageManager = getPackageManager();
+        appLabels = new AppLabelCache(new AppLabelCache.Loader() {
+            @Override
+            public CharSequence load(String packageName) {
+                try {
+                    ApplicationInfo applicationInfo = packageManager.getApplicationInfo(packageName, 0);
+                    return packageManager.getApplicationLabel(applicationInfo);
+                } catch (PackageManager.NameNotFoundException e) {
+                    return "";
+                }
+            }
+        });
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
+        NotificationBus.get().register(busSource, new Executor() {
+            @Override
+            public void execute(Runnable task) {
+                mainHandler.post(task);
+            }
+        });
         IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(Constants.NOTIFICATION_LISTENER_CANCELED_ACTION);
-        intentFilter.addAction(Constants.NOTIFICATION_LISTENER_GET_ALL_ACTION);
-        registerReceiver(mNotificationListener, intentFilter);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        intentFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        intentFilter.addDataScheme("package");
+        registerReceiver(mPackageChanged, intentFilter);
         Toast.makeText(this, "Notification listener started", Toast.LENGTH_SHORT).show();
         SharedPreferences.Editor editor = sharedPreferences.edit();
         editor.putBoolean("NOTIFICATION_LISTENER", true);
@@ -71,7 +127,10 @@ public class NotificationListener extends NotificationListenerService {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        unregisterReceiver(mNotificationListener);
+        defaultSharedPreferences.unregisterOnSharedPreferenceChangeListener(preferenceListener);
+        NotificationBus.get().unregister(busSource);
+        unregisterReceiver(mPackageChanged);
+        Log.i("NotificationListener", "App names: " + appLabels);
         Toast.makeText(this, "Notification listener stopped", Toast.LENGTH_SHORT).show();
         SharedPreferences.Editor editor = sharedPreferences.edit();
         editor.putBoolean("NOTIFICATION_LISTENER", false);
@@ -81,58 +140,133 @@ public class NotificationListener extends NotificationListenerService {
         sendBroadcast(intent);
     }
 
+    @Override
+    public void onListenerConnected() {
+        super.onListenerConnected();
+        // Let the BluetoothChatService know what is already showing
+        sendActiveNotifications();
+    }
+
     @Override
     public void onNotificationPosted(StatusBarNotification statusBarNotification) {
-        sendNotification(statusBarNotification, Constants.NOTIFICATION_LISTENER_POSTED_ACTION);
+        sendNotification(statusBarNotification, true, false);
     }
 
     @Override
     public void onNotificationRemoved(StatusBarNotification statusBarNotification) {
-        sendNotification(statusBarNotification, Constants.NOTIFICATION_LISTENER_REMOVED_ACTION);
+        sendNotification(statusBarNotification, false, false);
+    }
+
+    private void loadAppFilter() {
+        appFilter = AppFilter.of(defaultSharedPreferences.getStringSet("apps_list", null));
+    }
+
+    private void loadNotificationFilter() {
+        String rules = defaultSharedPreferences.getString("filter_rules", NotificationFilter.DEFAULT_RULES);
+        try {
+            notificationFilter = NotificationFilter.compile(rules);
+        } catch (IllegalArgumentException e) {
+            // Keep the rules that worked
+            Log.w("NotificationListener", "Invalid filter rules", e);
+        }
     }
 
-    private void sendNotification(StatusBarNotification statusBarNotification, String action) {
-        Set<String> apps = defaultSharedPreferences.getStringSet("apps_list", null);
-        if (apps == null) {
+    private void sendActiveNotifications() {
+        StatusBarNotification[] statusBarNotifications = getActiveNotifications();
+        if (statusBarNotifications == null) {
             return;
         }
-        for (String app: apps) {
-            String appPackageName = statusBarNotification.getPackageName();
-            if (app.equals(appPackageName)) {
-                Notification notification = statusBarNotification.getNotification();
-                CharSequence text = notification.extras.getCharSequence("android.text");
-                if (text == null) {
-                    action = Constants.NOTIFICATION_LISTENER_REMOVED_ACTION;
-                }
-                Intent intent = new Intent(action);
-                String key;
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
-                    key = statusBarNotification.getKey();
-                }
-                else {
-                    key = appPackageName + "|" +
-                            statusBarNotification.getTag() + "|" +
-                            statusBarNotification.getId();
-                }
-                intent.putExtra("key", key);
-                if (Objects.equals(action, Constants.NOTIFICATION_LISTENER_POSTED_ACTION)) {
-                    ApplicationInfo applicationInfo;
-                    CharSequence appName = "";
-                    try {
-                        applicationInfo = packageManager.getApplicationInfo(appPackageName, 0);
-                        appName = packageManager.getApplicationLabel(applicationInfo);
-                    } catch (PackageManager.NameNotFoundException ignored) {}
-                    intent.putExtra("appName", appName);
-                    intent.putExtra("packageName", appPackageName);
-                    intent.putExtra("title", notification.extras.getCharSequence("android.title"));
-                    intent.putExtra("text", text);
-                    if (notification.contentIntent != null) {
-                        intent.putExtra("contentIntent", notification.contentIntent);
-                    }
-                }
-                sendBroadcast(intent);
-                break;
+        for (StatusBarNotification statusBarNotification : statusBarNotifications) {
+            sendNotification(statusBarNotification, true, true);
+        }
+    }
+
+    /**
+     * Forward a notification to the BluetoothChatService.
+     *
+     * @param posted Whether the notification was posted rather than removed
+     * @param resync Whether the notification is only re-sent to bring the PC up to date
+     */
+    private void sendNotification(StatusBarNotification statusBarNotification, boolean posted, boolean resync) {
+        String appPackageName = statusBarNotification.getPackageName();
+        if (!appFilter.accepts(appPackageName)) {
+            return;
+        }
+        Notification notification = statusBarNotification.getNotification();
+        CharSequence text = notification.extras.getCharSequence("android.text");
+        if (text == null) {
+            posted = false;
+        }
+        String key;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            key = statusBarNotification.getKey();
+        }
+        else {
+            key = appPackageName + "|" +
+                    statusBarNotification.getTag() + "|" +
+                    statusBarNotification.getId();
+        }
+        CharSequence title = notification.extras.getCharSequence("android.title");
+        if (posted && notificationFilter.decide(appPackageName, channelIdOf(notification), notification.category,
+                flagsOf(statusBarNotification, key), title, text) == NotificationFilter.Action.Drop) {
+            if (!sentKeys.contains(key)) {
+                return;
+            }
+            // Was sent before it became noise, take it off the PC
+            posted = false;
+        }
+        if (posted) {
+            sentKeys.add(key);
+            NotificationBus.get().post(new NotificationRecord(key, appPackageName, appLabels.get(appPackageName),
+                    title, text, notification.contentIntent, resync));
+        } else if (sentKeys.remove(key)) {
+            // Nothing to take off the PC for a notification it never got
+            NotificationBus.get().remove(key);
+        }
+    }
+
+    /**
+     * Shows the counters of the app name cache, with
+     * adb shell dumpsys activity service NotificationListener
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("App names: " + appLabels);
+    }
+
+    private static String channelIdOf(Notification notification) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            return notification.getChannelId();
+        }
+        return null;
+    }
+
+    /**
+     * Work out the NotificationFilter flags of a notification, skipping the
+     * ones no rule looks at.
+     */
+    private int flagsOf(StatusBarNotification statusBarNotification, String key) {
+        Notification notification = statusBarNotification.getNotification();
+        int flags = 0;
+        if ((notification.flags & Notification.FLAG_ONGOING_EVENT) != 0) {
+            flags |= NotificationFilter.FLAG_ONGOING;
+        }
+        if ((notification.flags & Notification.FLAG_GROUP_SUMMARY) != 0) {
+            flags |= NotificationFilter.FLAG_SUMMARY;
+        }
+        if (notificationFilter.uses(NotificationFilter.FLAG_PROGRESS)
+                && (Notification.CATEGORY_PROGRESS.equals(notification.category)
+                || notification.extras.getInt(Notification.EXTRA_PROGRESS_MAX, 0) > 0
+                || notification.extras.getBoolean(Notification.EXTRA_PROGRESS_INDETERMINATE, false))) {
+            flags |= NotificationFilter.FLAG_PROGRESS;
+        }
+        if (notificationFilter.uses(NotificationFilter.FLAG_SILENT) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            RankingMap rankingMap = getCurrentRanking();
+            if (rankingMap != null && rankingMap.getRanking(key, ranking)
+                    && ranking.getImportance() <= NotificationManager.IMPORTANCE_LOW) {
+                flags |= NotificationFilter.FLAG_SILENT;
             }
         }
+        return flags;
     }
 }
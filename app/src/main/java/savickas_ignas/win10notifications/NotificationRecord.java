@@ -0,0 +1,61 @@
+package savickas_ignas.win10notifications;
+
+import android.app.PendingIntent;
+
+/**
+ * A notification of the phone, as the NotificationListener hands it to the
+ * BluetoothChatService. Immutable, so it can be passed between threads as is.
+ */
+public final class NotificationRecord {
+
+    private final String key;
+    private final String packageName;
+    private final CharSequence appName;
+    private final CharSequence title;
+    private final CharSequence text;
+    private final PendingIntent contentIntent;
+    private final boolean resync;
+
+    /**
+     * @param contentIntent What to open when the notification is clicked on the PC, or null
+     * @param resync Whether the notification is only sent again to bring the PC up to date
+     */
+    public NotificationRecord(String key, String packageName, CharSequence appName, CharSequence title,
+                              CharSequence text, PendingIntent contentIntent, boolean resync) {
+        this.key = key;
+        this.packageName = packageName;
+        this.appName = appName;
+        this.title = title;
+        this.text = text;
+        this.contentIntent = contentIntent;
+        this.resync = resync;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public CharSequence getAppName() {
+        return appName;
+    }
+
+    public CharSequence getTitle() {
+        return title;
+    }
+
+    public CharSequence getText() {
+        return text;
+    }
+
+    public PendingIntent getContentIntent() {
+        return contentIntent;
+    }
+
+    public boolean isResync() {
+        return resync;
+    }
+}
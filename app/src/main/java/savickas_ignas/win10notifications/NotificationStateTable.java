@@ -0,0 +1,247 @@
+package savickas_ignas.win10notifications;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The notifications the phone currently shows, as last sent to the PC. It
+ * lets a reconnect send only what changed instead of every notification.
+ * <p>
+ * Every change of a notification gets the next revision of the table.
+ * Removed notifications are kept as tombstones for a while, so removals can
+ * be sent too. The digest is the XOR of the content hashes of all live
+ * notifications. The PC can compute it the same way from the frames it has
+ * received, because the content hash is FNV-1a 64 over the fields of the Add
+ * frame, everything after {@link FrameEncoder#HEADER_SIZE}.
+ * <p>
+ * The epoch is random and changes whenever the table starts empty, so a PC
+ * that reports a revision from another epoch gets the full state.
+ */
+public class NotificationStateTable {
+
+    public static final int DEFAULT_MAX_TOMBSTONES = 512;
+
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * The state of one notification at some revision. A copy, the table
+     * keeps changing its own entries after handing it out.
+     */
+    public static final class Record {
+        private final String key;
+        private final long revision;
+        private final byte[] frame;
+        private final boolean removed;
+
+        Record(String key, long revision, byte[] frame, boolean removed) {
+            this.key = key;
+            this.revision = revision;
+            this.frame = frame;
+            this.removed = removed;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public long getRevision() {
+            return revision;
+        }
+
+        /**
+         * @return The Add frame, or null for a removed notification
+         */
+        public byte[] getFrame() {
+            return frame;
+        }
+
+        public boolean isRemoved() {
+            return removed;
+        }
+    }
+
+    private static final class Entry {
+        private final String key;
+        private long revision;
+        private long hash;
+        private byte[] frame;
+        private boolean removed;
+
+        Entry(String key) {
+            this.key = key;
+        }
+
+        Record copy() {
+            // The frame is never written to once encoded, it can be shared
+            return new Record(key, revision, frame, removed);
+        }
+    }
+
+    private static final Comparator<Entry> BY_REVISION = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry left, Entry right) {
+            return left.revision < right.revision ? -1 : left.revision == right.revision ? 0 : 1;
+        }
+    };
+
+    private final Map<String, Entry> records = new HashMap<>();
+    private final ArrayDeque<Entry> tombstones = new ArrayDeque<>();
+    private final int maxTombstones;
+    private final long epoch;
+    private long revision;
+    // Changes older than this are no longer known, they need the full state
+    private long horizon;
+    private long digest;
+    private int liveCount;
+
+    public NotificationStateTable() {
+        this(DEFAULT_MAX_TOMBSTONES);
+    }
+
+    public NotificationStateTable(int maxTombstones) {
+        this.maxTombstones = maxTombstones;
+        // Kept positive, it goes over the link as a decimal field
+        this.epoch = new SecureRandom().nextLong() & Long.MAX_VALUE;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getRevision() {
+        return revision;
+    }
+
+    public synchronized long getDigest() {
+        return digest;
+    }
+
+    /**
+     * Number of live notifications.
+     */
+    public synchronized int size() {
+        return liveCount;
+    }
+
+    /**
+     * Record a posted notification.
+     *
+     * @param frame The encoded Add frame
+     * @return false if the notification is already in the table with the
+     * same content, so there is nothing to send
+     */
+    public synchronized boolean put(String key, byte[] frame) {
+        long hash = hash(frame);
+        Entry record = records.get(key);
+        if (record == null) {
+            record = new Entry(key);
+            records.put(key, record);
+        } else if (!record.removed) {
+            if (record.hash == hash) {
+                return false;
+            }
+            digest ^= record.hash;
+            liveCount--;
+        }
+        record.removed = false;
+        record.hash = hash;
+        record.frame = frame;
+        record.revision = ++revision;
+        digest ^= hash;
+        liveCount++;
+        return true;
+    }
+
+    /**
+     * Record a removed notification.
+     *
+     * @return false if the notification was already removed
+     */
+    public synchronized boolean remove(String key) {
+        Entry record = records.get(key);
+        if (record == null) {
+            record = new Entry(key);
+            records.put(key, record);
+        } else if (record.removed) {
+            return false;
+        } else {
+            digest ^= record.hash;
+            liveCount--;
+        }
+        record.removed = true;
+        record.hash = 0;
+        record.frame = null;
+        record.revision = ++revision;
+        tombstones.addLast(record);
+        while (tombstones.size() > maxTombstones) {
+            Entry oldest = tombstones.pollFirst();
+            // It may have been posted again since, then it is no tombstone
+            if (oldest.removed && records.get(oldest.key) == oldest) {
+                records.remove(oldest.key);
+                horizon = Math.max(horizon, oldest.revision);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether the changes after a revision of a PC are all still known.
+     */
+    public synchronized boolean hasChangesSince(long epoch, long revision) {
+        return epoch == this.epoch && revision >= horizon && revision <= this.revision;
+    }
+
+    /**
+     * The notifications posted or removed after a revision, oldest change first.
+     */
+    public synchronized List<Record> changesSince(long revision) {
+        List<Entry> changes = new ArrayList<>();
+        for (Entry record : records.values()) {
+            if (record.revision > revision) {
+                changes.add(record);
+            }
+        }
+        return copies(changes);
+    }
+
+    /**
+     * Every live notification, oldest change first.
+     */
+    public synchronized List<Record> snapshot() {
+        List<Entry> live = new ArrayList<>(liveCount);
+        for (Entry record : records.values()) {
+            if (!record.removed) {
+                live.add(record);
+            }
+        }
+        return copies(live);
+    }
+
+    private static List<Record> copies(List<Entry> entries) {
+        Collections.sort(entries, BY_REVISION);
+        List<Record> copies = new ArrayList<>(entries.size());
+        for (Entry entry : entries) {
+            copies.add(entry.copy());
+        }
+        return copies;
+    }
+
+    /**
+     * FNV-1a 64 over the fields of a frame.
+     */
+    public static long hash(byte[] frame) {
+        long hash = FNV_OFFSET_BASIS;
+        for (int i = FrameEncoder.HEADER_SIZE; i < frame.length; i++) {
+            hash ^= frame[i] & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
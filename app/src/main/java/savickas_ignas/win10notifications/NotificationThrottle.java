@@ -0,0 +1,196 @@
+package savickas_ignas.win10notifications;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Limits how often an update of the same notification is sent to the PC.
+ * <p>
+ * Download progress, navigation and media notifications are posted again
+ * several times a second. The first update of a notification goes out at
+ * once. Updates that follow within the interval are merged, only the latest
+ * is kept, and it goes out when the interval has passed, so the PC always
+ * ends up with the final state. The interval can be set per app, 0 sends
+ * every update.
+ * <p>
+ * The owner passes the time to every call and calls {@link #flush(long)}
+ * at {@link #nextDueMillis()}, so this class needs no timer of its own.
+ */
+public class NotificationThrottle {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    // Notifications remembered at most, the ones not updated lately are forgotten first
+    private static final int MAX_IDLE_ENTRIES = 256;
+
+    public interface Sink {
+        void deliver(NotificationRecord record);
+    }
+
+    private static final class Entry {
+        private long lastSentMillis;
+        private long intervalMillis;
+        // The latest update not sent yet, or null
+        private NotificationRecord pending;
+    }
+
+    private final Sink sink;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, Long> intervalByPackage = new HashMap<>();
+    private final Map<String, Long> suppressedByPackage = new HashMap<>();
+    private long defaultIntervalMillis = DEFAULT_INTERVAL_MILLIS;
+    private long offeredCount;
+    private long suppressedCount;
+
+    public NotificationThrottle(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Set the interval of the apps that have none of their own.
+     */
+    public synchronized void setInterval(long intervalMillis) {
+        defaultIntervalMillis = intervalMillis;
+    }
+
+    /**
+     * Set the interval of one app, 0 to send all of its updates.
+     */
+    public synchronized void setInterval(String packageName, long intervalMillis) {
+        intervalByPackage.put(packageName, intervalMillis);
+    }
+
+    /**
+     * Give an app the default interval again.
+     */
+    public synchronized void clearInterval(String packageName) {
+        intervalByPackage.remove(packageName);
+    }
+
+    private long intervalOf(String packageName) {
+        Long interval = intervalByPackage.get(packageName);
+        return interval != null ? interval : defaultIntervalMillis;
+    }
+
+    /**
+     * Send an update now, or keep it until the interval of its notification
+     * has passed. An update that only brings the PC up to date is always
+     * sent now, it is the latest state anyway.
+     */
+    public synchronized void offer(NotificationRecord record, long nowMillis) {
+        offeredCount++;
+        String key = record.getKey();
+        long interval = intervalOf(record.getPackageName());
+        Entry entry = entries.get(key);
+        if (interval <= 0 || record.isResync()) {
+            if (entry != null && entry.pending != null) {
+                suppressed(entry.pending);
+            }
+            entries.remove(key);
+            sink.deliver(record);
+            return;
+        }
+        if (entry == null) {
+            if (entries.size() >= MAX_IDLE_ENTRIES) {
+                forgetIdle(nowMillis);
+            }
+            entry = new Entry();
+            entries.put(key, entry);
+        } else if (entry.pending != null || nowMillis - entry.lastSentMillis < entry.intervalMillis) {
+            // Sent lately, wait for the rest of the interval with only the latest update
+            if (entry.pending != null) {
+                suppressed(entry.pending);
+            }
+            entry.intervalMillis = interval;
+            entry.pending = record;
+            return;
+        }
+        entry.intervalMillis = interval;
+        entry.lastSentMillis = nowMillis;
+        sink.deliver(record);
+    }
+
+    /**
+     * Forget a notification that was removed, with any update of it that
+     * was not sent yet.
+     */
+    public synchronized void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null && entry.pending != null) {
+            suppressed(entry.pending);
+        }
+    }
+
+    /**
+     * Send the updates whose interval has passed.
+     */
+    public synchronized void flush(long nowMillis) {
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (nowMillis - entry.lastSentMillis < entry.intervalMillis) {
+                continue;
+            }
+            if (entry.pending != null) {
+                NotificationRecord record = entry.pending;
+                entry.pending = null;
+                entry.lastSentMillis = nowMillis;
+                sink.deliver(record);
+            } else {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * When {@link #flush(long)} has updates to send, or -1 if it has none.
+     */
+    public synchronized long nextDueMillis() {
+        long due = -1;
+        for (Entry entry : entries.values()) {
+            if (entry.pending != null) {
+                long entryDue = entry.lastSentMillis + entry.intervalMillis;
+                if (due < 0 || entryDue < due) {
+                    due = entryDue;
+                }
+            }
+        }
+        return due;
+    }
+
+    private void forgetIdle(long nowMillis) {
+        for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+            Entry entry = iterator.next();
+            if (entry.pending == null && nowMillis - entry.lastSentMillis >= entry.intervalMillis) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void suppressed(NotificationRecord record) {
+        suppressedCount++;
+        Long count = suppressedByPackage.get(record.getPackageName());
+        suppressedByPackage.put(record.getPackageName(), count != null ? count + 1 : 1);
+    }
+
+    /**
+     * Number of updates given to {@link #offer(NotificationRecord, long)}.
+     */
+    public synchronized long getOfferedCount() {
+        return offeredCount;
+    }
+
+    /**
+     * Number of updates that were replaced by a later one, or by the
+     * removal of their notification, before they were sent.
+     */
+    public synchronized long getSuppressedCount() {
+        return suppressedCount;
+    }
+
+    /**
+     * Number of suppressed updates of every app.
+     */
+    public synchronized Map<String, Long> getSuppressedByPackage() {
+        return new HashMap<>(suppressedByPackage);
+    }
+}
@@ -0,0 +1,413 @@
+package savickas_ignas.win10notifications;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of encoded frames waiting to be sent, keyed by notification key so
+ * that only the latest state of each notification goes over the link.
+ * <ul>
+ * <li>An Add replaces the frame of an Add for the same key that is still queued.</li>
+ * <li>A Remove cancels an Add for the same key that is still queued. If that
+ * key was never sent, the Remove is dropped as well.</li>
+ * <li>A Remove for a key that already has a Remove queued is dropped.</li>
+ * </ul>
+ * Each {@link Priority} class has its own FIFO. The most urgent non-empty
+ * class is served first, unless the head of a less urgent class has waited
+ * longer than that class's maximum wait.
+ * <p>
+ * The queue is bounded by a number of entries and a number of bytes. When a
+ * new frame goes over either limit, classes are trimmed by their
+ * {@link OverflowPolicy}, least urgent class first, and every dropped frame
+ * is counted.
+ */
+public class OutboundQueue {
+
+    /**
+     * What to do with a class when the queue is over its limits.
+     */
+    public enum OverflowPolicy {
+        // Never drop, the queue may go over its limits for these
+        Keep,
+        // Drop the entries that have been queued longest
+        DropOldest,
+        // Drop the entries that were queued last
+        DropNewest,
+        // Drop every entry of the class and queue a single snapshot marker in
+        // their place, so the state can be sent again once the link catches up
+        Snapshot
+    }
+
+    public static final int DEFAULT_MAX_ENTRIES = 1000;
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+
+    /**
+     * A queued frame.
+     */
+    public static class Entry {
+        private final Type type;
+        private final String key;
+        private final Priority priority;
+        private final long enqueuedNanos;
+        private byte[] frame;
+        private boolean cancelled;
+        private boolean snapshot;
+
+        Entry(Type type, String key, Priority priority, byte[] frame) {
+            this.type = type;
+            this.key = key;
+            this.priority = priority;
+            this.frame = frame;
+            this.enqueuedNanos = System.nanoTime();
+        }
+
+        public Type getType() {
+            return type;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        public byte[] getFrame() {
+            return frame;
+        }
+
+        /**
+         * Whether this is a marker left in place of dropped entries. It has
+         * no frame; the state of the class needs to be sent again instead.
+         */
+        public boolean isSnapshot() {
+            return snapshot;
+        }
+    }
+
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final ArrayDeque<Entry>[] classes;
+    private final int[] classSizes = new int[PRIORITIES.length];
+    // Cancelled entries still sitting in each class's deque
+    private final int[] deadCounts = new int[PRIORITIES.length];
+    private final long[] maxWaitNanos = new long[PRIORITIES.length];
+    private final OverflowPolicy[] policies = new OverflowPolicy[PRIORITIES.length];
+    private final boolean[] snapshotQueued = new boolean[PRIORITIES.length];
+    private final Map<String, Entry> queuedAdds = new HashMap<>();
+    private final Map<String, Entry> queuedRemoves = new HashMap<>();
+    // Keys whose Add has been handed out and not removed since
+    private final Set<String> sentKeys = new HashSet<>();
+    private int size;
+    private long bytes;
+    private int maxEntries = DEFAULT_MAX_ENTRIES;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    private int superseded;
+    private int cancelled;
+    private final int[][] droppedCounts = new int[PRIORITIES.length][OverflowPolicy.values().length];
+    private final long[] droppedBytes = new long[PRIORITIES.length];
+
+    @SuppressWarnings("unchecked")
+    public OutboundQueue() {
+        classes = (ArrayDeque<Entry>[]) new ArrayDeque<?>[PRIORITIES.length];
+        for (Priority priority : PRIORITIES) {
+            classes[priority.ordinal()] = new ArrayDeque<>();
+            maxWaitNanos[priority.ordinal()] = TimeUnit.MILLISECONDS.toNanos(priority.getDefaultMaxWaitMillis());
+        }
+        policies[Priority.Call.ordinal()] = OverflowPolicy.Keep;
+        policies[Priority.Sms.ordinal()] = OverflowPolicy.DropOldest;
+        // A lost Remove would leave a stale notification on the PC
+        policies[Priority.Remove.ordinal()] = OverflowPolicy.Snapshot;
+        policies[Priority.Normal.ordinal()] = OverflowPolicy.DropOldest;
+        policies[Priority.Bulk.ordinal()] = OverflowPolicy.Snapshot;
+    }
+
+    /**
+     * Set the limits of the queue. They are enforced from the next offer.
+     */
+    public synchronized void setLimits(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Set what happens to a class when the queue is over its limits.
+     */
+    public synchronized void setOverflowPolicy(Priority priority, OverflowPolicy policy) {
+        policies[priority.ordinal()] = policy;
+    }
+
+    /**
+     * Set how long messages of a class may wait before they are sent ahead
+     * of more urgent classes.
+     */
+    public synchronized void setMaxWait(Priority priority, long maxWaitMillis) {
+        maxWaitNanos[priority.ordinal()] = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    }
+
+    /**
+     * Queue a frame, coalescing it with what is already queued for the key.
+     * If that takes the queue over its limits, entries are dropped by the
+     * overflow policies, possibly including this one.
+     *
+     * @return false if the frame was dropped because the queue is full
+     */
+    public synchronized boolean offer(Type type, String key, Priority priority, byte[] frame) {
+        enqueue(type, key, priority, frame);
+        Entry latest = type == Type.Remove ? queuedRemoves.get(key) : queuedAdds.get(key);
+        trim();
+        purge();
+        return type != Type.Add && type != Type.Remove
+                || latest == null || !latest.cancelled;
+    }
+
+    private void enqueue(Type type, String key, Priority priority, byte[] frame) {
+        if (type == Type.Add) {
+            Entry queued = queuedAdds.get(key);
+            if (queued != null) {
+                superseded++;
+                if (priority.compareTo(queued.priority) >= 0) {
+                    bytes += frame.length - queued.frame.length;
+                    queued.frame = frame;
+                    return;
+                }
+                // Move it up to the more urgent class
+                cancel(queued);
+            }
+            Entry entry = new Entry(type, key, priority, frame);
+            queuedAdds.put(key, entry);
+            add(entry);
+        } else if (type == Type.Remove) {
+            Entry queued = queuedAdds.remove(key);
+            if (queued != null) {
+                cancel(queued);
+                cancelled++;
+                if (!sentKeys.contains(key)) {
+                    // The PC never saw this notification
+                    return;
+                }
+            }
+            if (queuedRemoves.containsKey(key)) {
+                cancelled++;
+                return;
+            }
+            Entry entry = new Entry(type, key, priority, frame);
+            queuedRemoves.put(key, entry);
+            add(entry);
+        } else {
+            add(new Entry(type, key, priority, frame));
+        }
+    }
+
+    private void add(Entry entry) {
+        classes[entry.priority.ordinal()].addLast(entry);
+        classSizes[entry.priority.ordinal()]++;
+        size++;
+        bytes += entry.frame.length;
+    }
+
+    private void cancel(Entry entry) {
+        entry.cancelled = true;
+        classSizes[entry.priority.ordinal()]--;
+        deadCounts[entry.priority.ordinal()]++;
+        size--;
+        bytes -= entry.frame.length;
+    }
+
+    /**
+     * Cancelled entries are normally skipped when they reach the head of
+     * their class. Clear them out early if they pile up behind a stalled link.
+     */
+    private void purge() {
+        for (int i = 0; i < classes.length; i++) {
+            if (deadCounts[i] > 32 && deadCounts[i] > classSizes[i]) {
+                Iterator<Entry> iterator = classes[i].iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().cancelled) {
+                        iterator.remove();
+                    }
+                }
+                deadCounts[i] = 0;
+            }
+        }
+    }
+
+    private boolean overLimits() {
+        return size > maxEntries || bytes > maxBytes;
+    }
+
+    /**
+     * Drop entries until the queue is within its limits, least urgent class first.
+     */
+    private void trim() {
+        for (int i = classes.length - 1; i >= 0 && overLimits(); i--) {
+            OverflowPolicy policy = policies[i];
+            ArrayDeque<Entry> entries = classes[i];
+            switch (policy) {
+                case DropOldest:
+                    while (overLimits() && firstLive(i) != null) {
+                        drop(entries.peekFirst(), policy);
+                    }
+                    break;
+                case DropNewest:
+                    while (overLimits() && lastLive(i) != null) {
+                        drop(entries.peekLast(), policy);
+                    }
+                    break;
+                case Snapshot:
+                    if (classSizes[i] == 0 || classSizes[i] == 1 && snapshotQueued[i]) {
+                        break;
+                    }
+                    Entry marker = null;
+                    for (Entry entry : entries) {
+                        if (entry.cancelled) {
+                            continue;
+                        }
+                        if (entry.snapshot) {
+                            marker = entry;
+                        } else {
+                            drop(entry, policy);
+                        }
+                    }
+                    entries.clear();
+                    deadCounts[i] = 0;
+                    if (marker != null) {
+                        entries.addLast(marker);
+                    } else {
+                        marker = new Entry(null, null, PRIORITIES[i], new byte[0]);
+                        marker.snapshot = true;
+                        snapshotQueued[i] = true;
+                        add(marker);
+                    }
+                    break;
+                case Keep:
+                    break;
+            }
+        }
+    }
+
+    private void drop(Entry entry, OverflowPolicy policy) {
+        cancel(entry);
+        if (entry.snapshot) {
+            snapshotQueued[entry.priority.ordinal()] = false;
+        } else if (entry.type == Type.Add) {
+            queuedAdds.remove(entry.key);
+        } else if (entry.type == Type.Remove) {
+            queuedRemoves.remove(entry.key);
+        }
+        droppedCounts[entry.priority.ordinal()][policy.ordinal()]++;
+        droppedBytes[entry.priority.ordinal()] += entry.frame.length;
+    }
+
+    /**
+     * @return The next entry, or null if the queue is empty
+     */
+    public synchronized Entry poll() {
+        if (size == 0) {
+            return null;
+        }
+        long now = System.nanoTime();
+        ArrayDeque<Entry> next = null;
+        for (int i = 0; i < classes.length; i++) {
+            Entry head = firstLive(i);
+            if (head == null) {
+                continue;
+            }
+            if (next == null) {
+                next = classes[i];
+                if (head.priority == Priority.Call) {
+                    // Nothing goes ahead of a ringing phone
+                    break;
+                }
+            } else if (now - head.enqueuedNanos > maxWaitNanos[i]) {
+                // Starving, let it go ahead of the more urgent classes
+                next = classes[i];
+                break;
+            }
+        }
+        if (next == null) {
+            return null;
+        }
+        Entry entry = next.pollFirst();
+        classSizes[entry.priority.ordinal()]--;
+        size--;
+        bytes -= entry.frame.length;
+        if (entry.snapshot) {
+            snapshotQueued[entry.priority.ordinal()] = false;
+        } else if (entry.type == Type.Add) {
+            queuedAdds.remove(entry.key);
+            sentKeys.add(entry.key);
+        } else if (entry.type == Type.Remove) {
+            queuedRemoves.remove(entry.key);
+            sentKeys.remove(entry.key);
+        }
+        return entry;
+    }
+
+    private Entry firstLive(int index) {
+        Entry head;
+        while ((head = classes[index].peekFirst()) != null && head.cancelled) {
+            classes[index].pollFirst();
+            deadCounts[index]--;
+        }
+        return head;
+    }
+
+    private Entry lastLive(int index) {
+        Entry tail;
+        while ((tail = classes[index].peekLast()) != null && tail.cancelled) {
+            classes[index].pollLast();
+            deadCounts[index]--;
+        }
+        return tail;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int size(Priority priority) {
+        return classSizes[priority.ordinal()];
+    }
+
+    /**
+     * Total size of the queued frames.
+     */
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Number of frames of a class dropped by an overflow policy.
+     */
+    public synchronized int getDroppedCount(Priority priority, OverflowPolicy policy) {
+        return droppedCounts[priority.ordinal()][policy.ordinal()];
+    }
+
+    /**
+     * Total size of the frames of a class dropped because the queue was full.
+     */
+    public synchronized long getDroppedBytes(Priority priority) {
+        return droppedBytes[priority.ordinal()];
+    }
+
+    /**
+     * Number of queued Adds that were replaced by a newer Add.
+     */
+    public synchronized int getSupersededCount() {
+        return superseded;
+    }
+
+    /**
+     * Number of queued frames dropped because a Remove made them pointless.
+     */
+    public synchronized int getCancelledCount() {
+        return cancelled;
+    }
+}
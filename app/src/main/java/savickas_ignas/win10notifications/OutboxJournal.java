@@ -0,0 +1,271 @@
+package savickas_ignas.win10notifications;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of messages queued while the PC is not connected,
+ * kept in a memory-mapped file so it survives disconnects and service
+ * restarts.
+ * <p>
+ * File layout:
+ * <pre>
+ * header   magic, read offset, write offset, reserved (4 bytes each)
+ * records  length, CRC32, type, priority, key length (2 bytes), key, frame
+ * </pre>
+ * When a record does not fit at the end of the file, the journal is
+ * compacted: only the last record of each key is kept. If that is still not
+ * enough, the oldest records are dropped.
+ * <p>
+ * It is not thread safe. Each session's WriterThread owns the journal of that
+ * session and is the only thread that uses it.
+ */
+public class OutboxJournal implements Closeable {
+
+    /**
+     * Receives the records of the journal in the order they were appended.
+     */
+    public interface Consumer {
+        void accept(Type type, String key, Priority priority, byte[] frame);
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024 * 1024;
+
+    private static final int MAGIC = 0x57314E4A;
+    private static final int HEADER_SIZE = 16;
+    private static final int READ_OFFSET = 4;
+    private static final int WRITE_OFFSET = 8;
+    // Length and CRC in front of every record
+    private static final int RECORD_HEADER_SIZE = 8;
+    // Type, priority and key length at the start of every record body
+    private static final int BODY_HEADER_SIZE = 4;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Priority[] PRIORITIES = Priority.values();
+
+    private final RandomAccessFile file;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final CRC32 crc = new CRC32();
+    private final byte[] scratch = new byte[4096];
+    private int readOffset;
+    private int writeOffset;
+    private int droppedCount;
+
+    public OutboxJournal(File path, int capacity) throws IOException {
+        this.capacity = capacity;
+        file = new RandomAccessFile(path, "rw");
+        buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            setOffsets(HEADER_SIZE, HEADER_SIZE);
+            return;
+        }
+        readOffset = buffer.getInt(READ_OFFSET);
+        writeOffset = buffer.getInt(WRITE_OFFSET);
+        if (readOffset < HEADER_SIZE || writeOffset < readOffset || writeOffset > capacity) {
+            setOffsets(HEADER_SIZE, HEADER_SIZE);
+            return;
+        }
+        // The write offset may be stale or point past a torn record
+        int position = readOffset;
+        while (position < writeOffset) {
+            int end = validRecordEnd(position);
+            if (end < 0) {
+                break;
+            }
+            position = end;
+        }
+        setOffsets(readOffset, position);
+    }
+
+    public boolean isEmpty() {
+        return readOffset == writeOffset;
+    }
+
+    /**
+     * Number of records dropped because the journal was full.
+     */
+    public int getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Append a record.
+     *
+     * @return false if the record is larger than the whole journal
+     */
+    public boolean append(Type type, String key, Priority priority, byte[] frame) {
+        byte[] keyBytes = key.getBytes(UTF_8);
+        int length = BODY_HEADER_SIZE + keyBytes.length + frame.length;
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (recordSize > capacity - HEADER_SIZE || keyBytes.length > 0xFFFF) {
+            droppedCount++;
+            return false;
+        }
+        if (writeOffset + recordSize > capacity) {
+            compact();
+            if (writeOffset + recordSize > capacity) {
+                dropOldest(recordSize);
+            }
+        }
+        int body = writeOffset + RECORD_HEADER_SIZE;
+        buffer.position(body);
+        buffer.put((byte) type.getValue());
+        buffer.put((byte) priority.ordinal());
+        buffer.putShort((short) keyBytes.length);
+        buffer.put(keyBytes);
+        buffer.put(frame);
+        buffer.putInt(writeOffset, length);
+        buffer.putInt(writeOffset + 4, checksum(body, length));
+        setOffsets(readOffset, writeOffset + recordSize);
+        return true;
+    }
+
+    /**
+     * Hand every record to the consumer in order, then empty the journal.
+     *
+     * @return The number of records replayed
+     */
+    public int replay(Consumer consumer) {
+        int count = 0;
+        int position = readOffset;
+        while (position < writeOffset) {
+            int end = validRecordEnd(position);
+            if (end < 0) {
+                break;
+            }
+            int body = position + RECORD_HEADER_SIZE;
+            Type type = Type.valueOf(buffer.get(body) & 0xFF);
+            int priority = buffer.get(body + 1) & 0xFF;
+            int keyLength = buffer.getShort(body + 2) & 0xFFFF;
+            byte[] keyBytes = new byte[keyLength];
+            buffer.position(body + BODY_HEADER_SIZE);
+            buffer.get(keyBytes);
+            byte[] frame = new byte[end - buffer.position()];
+            buffer.get(frame);
+            if (type != null && priority < PRIORITIES.length) {
+                consumer.accept(type, new String(keyBytes, UTF_8), PRIORITIES[priority], frame);
+                count++;
+            }
+            position = end;
+        }
+        setOffsets(HEADER_SIZE, HEADER_SIZE);
+        return count;
+    }
+
+    /**
+     * Keep only the last record of every key and move the records to the
+     * start of the file.
+     */
+    private void compact() {
+        List<Integer> records = new ArrayList<>();
+        Map<String, Integer> lastRecord = new HashMap<>();
+        int position = readOffset;
+        while (position < writeOffset) {
+            int end = validRecordEnd(position);
+            if (end < 0) {
+                break;
+            }
+            lastRecord.put(keyAt(position), records.size());
+            records.add(position);
+            position = end;
+        }
+        byte[] kept = new byte[position - readOffset];
+        int keptLength = 0;
+        for (int i = 0; i < records.size(); i++) {
+            int start = records.get(i);
+            int recordSize = RECORD_HEADER_SIZE + buffer.getInt(start);
+            if (lastRecord.get(keyAt(start)) != i) {
+                continue;
+            }
+            buffer.position(start);
+            buffer.get(kept, keptLength, recordSize);
+            keptLength += recordSize;
+        }
+        buffer.position(HEADER_SIZE);
+        buffer.put(kept, 0, keptLength);
+        setOffsets(HEADER_SIZE, HEADER_SIZE + keptLength);
+    }
+
+    /**
+     * Drop the oldest records until there is room for the given number of bytes.
+     */
+    private void dropOldest(int needed) {
+        int start = readOffset;
+        while (start < writeOffset && (writeOffset - start) + needed > capacity - HEADER_SIZE) {
+            start += RECORD_HEADER_SIZE + buffer.getInt(start);
+            droppedCount++;
+        }
+        // Slide what is left to the start so the freed space can be used
+        byte[] rest = new byte[Math.max(writeOffset - start, 0)];
+        buffer.position(start);
+        buffer.get(rest);
+        buffer.position(HEADER_SIZE);
+        buffer.put(rest);
+        setOffsets(HEADER_SIZE, HEADER_SIZE + rest.length);
+    }
+
+    private String keyAt(int position) {
+        int body = position + RECORD_HEADER_SIZE;
+        byte[] keyBytes = new byte[buffer.getShort(body + 2) & 0xFFFF];
+        buffer.position(body + BODY_HEADER_SIZE);
+        buffer.get(keyBytes);
+        return new String(keyBytes, UTF_8);
+    }
+
+    /**
+     * @return The offset just past the record, or -1 if it is torn or corrupt
+     */
+    private int validRecordEnd(int position) {
+        if (position + RECORD_HEADER_SIZE > capacity) {
+            return -1;
+        }
+        int length = buffer.getInt(position);
+        int body = position + RECORD_HEADER_SIZE;
+        if (length < BODY_HEADER_SIZE || length > capacity - body) {
+            return -1;
+        }
+        if (BODY_HEADER_SIZE + (buffer.getShort(body + 2) & 0xFFFF) > length) {
+            return -1;
+        }
+        if (checksum(body, length) != buffer.getInt(position + 4)) {
+            return -1;
+        }
+        return body + length;
+    }
+
+    private int checksum(int offset, int length) {
+        crc.reset();
+        buffer.position(offset);
+        while (length > 0) {
+            int count = Math.min(length, scratch.length);
+            buffer.get(scratch, 0, count);
+            crc.update(scratch, 0, count);
+            length -= count;
+        }
+        return (int) crc.getValue();
+    }
+
+    private void setOffsets(int read, int write) {
+        readOffset = read;
+        writeOffset = write;
+        buffer.putInt(READ_OFFSET, read);
+        buffer.putInt(WRITE_OFFSET, write);
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.force();
+        file.close();
+    }
+}
@@ -0,0 +1,52 @@
+package savickas_ignas.win10notifications;
+
+/**
+ * Priority classes of outgoing messages, most urgent first.
+ */
+public enum Priority {
+    // Incoming call started or ended
+    Call(0),
+    // SMS and battery warnings
+    Sms(1000),
+    // Notifications removed on the phone
+    Remove(2000),
+    // Notifications posted on the phone
+    Normal(3000),
+    // Notifications re-sent to bring the PC up to date after a reconnect
+    Bulk(10000);
+
+    private final long defaultMaxWaitMillis;
+
+    Priority(long defaultMaxWaitMillis) {
+        this.defaultMaxWaitMillis = defaultMaxWaitMillis;
+    }
+
+    /**
+     * How long a message of this class may wait before it is sent ahead of
+     * more urgent classes, so that a steady stream of urgent messages cannot
+     * starve it.
+     */
+    public long getDefaultMaxWaitMillis() {
+        return defaultMaxWaitMillis;
+    }
+
+    /**
+     * Pick the class of a message.
+     *
+     * @param type The message type
+     * @param key The notification key
+     * @param resync Whether the message is part of a resync after reconnect
+     */
+    public static Priority classify(Type type, String key, boolean resync) {
+        if (key.endsWith("_call")) {
+            return Call;
+        }
+        if (key.endsWith("_sms") || key.equals("low_battery") || key.equals("full_battery")) {
+            return Sms;
+        }
+        if (type == Type.Remove) {
+            return Remove;
+        }
+        return resync ? Bulk : Normal;
+    }
+}
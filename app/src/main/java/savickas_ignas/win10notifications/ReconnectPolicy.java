@@ -0,0 +1,125 @@
+package savickas_ignas.win10notifications;
+
+import java.util.Random;
+
+/**
+ * Decides how long to wait before the next connection attempt.
+ * <p>
+ * The first few retries come quickly, because most drops are short blips.
+ * After that the delay doubles with every failure up to a cap, so a PC that
+ * is off for hours does not keep the radio busy. Every delay is spread by a
+ * random jitter, so phone and PC do not keep missing each other in step.
+ * <p>
+ * Failures are counted until {@link #reset()}, which the service calls when
+ * Bluetooth comes on or a device is bonded. A connection that stayed up for
+ * a while also resets the count, so its loss is retried quickly again,
+ * while a link that keeps dropping right after connecting backs off.
+ */
+public class ReconnectPolicy {
+
+    public static final int DEFAULT_FAST_RETRIES = 3;
+    public static final long DEFAULT_FAST_DELAY_MILLIS = 1000;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 5000;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10 * 60 * 1000;
+    public static final double DEFAULT_JITTER = 0.2;
+    public static final long DEFAULT_STABLE_MILLIS = 60 * 1000;
+
+    private final Random random;
+    private int fastRetries = DEFAULT_FAST_RETRIES;
+    private long fastDelayMillis = DEFAULT_FAST_DELAY_MILLIS;
+    private long baseDelayMillis = DEFAULT_BASE_DELAY_MILLIS;
+    private long maxDelayMillis = DEFAULT_MAX_DELAY_MILLIS;
+    private double jitter = DEFAULT_JITTER;
+    private long stableMillis = DEFAULT_STABLE_MILLIS;
+    // Retries since the last reset
+    private int failures;
+    // When the current connection was made, 0 while not connected
+    private long connectedAt;
+
+    public ReconnectPolicy() {
+        this(new Random());
+    }
+
+    public ReconnectPolicy(Random random) {
+        this.random = random;
+    }
+
+    /**
+     * Set the delays. They apply from the next retry.
+     *
+     * @param fastRetries Number of retries after the fast delay
+     * @param fastDelayMillis Delay of the fast retries
+     * @param baseDelayMillis Delay of the first retry after the fast ones, doubled for every further one
+     * @param maxDelayMillis Longest delay
+     * @param jitter Fraction the delay is randomly made longer or shorter by, 0 for none
+     */
+    public synchronized void setDelays(int fastRetries, long fastDelayMillis, long baseDelayMillis, long maxDelayMillis, double jitter) {
+        this.fastRetries = fastRetries;
+        this.fastDelayMillis = fastDelayMillis;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Set how long a connection must stay up for its loss to reset the failures.
+     */
+    public synchronized void setStableMillis(long stableMillis) {
+        this.stableMillis = stableMillis;
+    }
+
+    /**
+     * The delay before the next retry. Counts a failure.
+     */
+    public synchronized long nextDelayMillis() {
+        long delay;
+        if (failures < fastRetries) {
+            delay = fastDelayMillis;
+        } else {
+            int doublings = Math.min(failures - fastRetries, 62);
+            delay = baseDelayMillis << doublings;
+            if (delay <= 0 || delay >> doublings != baseDelayMillis) {
+                // Overflowed
+                delay = maxDelayMillis;
+            }
+        }
+        failures++;
+        delay = Math.min(delay, maxDelayMillis);
+        if (jitter > 0) {
+            delay += (long) (delay * jitter * (2 * random.nextDouble() - 1));
+        }
+        return Math.max(0, Math.min(delay, maxDelayMillis));
+    }
+
+    /**
+     * Start over with the fast retries.
+     */
+    public synchronized void reset() {
+        failures = 0;
+    }
+
+    /**
+     * A connection was made.
+     */
+    public synchronized void onConnected(long nowMillis) {
+        connectedAt = nowMillis;
+    }
+
+    /**
+     * The connection was lost. If it had been up long enough, the failures
+     * before it no longer count.
+     */
+    public synchronized void onDisconnected(long nowMillis) {
+        if (connectedAt != 0 && nowMillis - connectedAt >= stableMillis) {
+            failures = 0;
+        }
+        connectedAt = 0;
+    }
+
+    /**
+     * Retries since the last reset.
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,36 @@
+package savickas_ignas.win10notifications;
+
+import android.content.SharedPreferences;
+
+/**
+ * The RFCOMM channel the service of a PC was last found on, so the next
+ * connection can skip the SDP lookup. Kept in the preferences that hold
+ * DEVICE_ADDRESS, so it survives restarts.
+ */
+public class RfcommChannelCache {
+
+    private static final String KEY_PREFIX = "RFCOMM_CHANNEL_";
+
+    private final SharedPreferences preferences;
+
+    public RfcommChannelCache(SharedPreferences preferences) {
+        this.preferences = preferences;
+    }
+
+    /**
+     * @return The channel, or -1 if none is known
+     */
+    public int get(String address) {
+        return preferences.getInt(KEY_PREFIX + address, -1);
+    }
+
+    public void put(String address, int channel) {
+        if (get(address) != channel) {
+            preferences.edit().putInt(KEY_PREFIX + address, channel).apply();
+        }
+    }
+
+    public void remove(String address) {
+        preferences.edit().remove(KEY_PREFIX + address).apply();
+    }
+}
@@ -0,0 +1,189 @@
+package savickas_ignas.win10notifications;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * A Bluetooth RFCOMM connection to the service record of the PC.
+ * <p>
+ * Looking up the service record over SDP takes a noticeable part of every
+ * connect. With a {@link RfcommChannelCache}, the channel found by the last
+ * lookup is tried first, directly, and SDP is only used when that fails,
+ * for example because the PC's service was registered on another channel.
+ * The direct connect goes through the hidden createRfcommSocket method, so
+ * it quietly falls back to SDP where that is missing.
+ */
+public class RfcommTransport implements Transport {
+
+    private static final String TAG = "RfcommTransport";
+
+    private final BluetoothDevice device;
+    private final UUID uuid;
+    private final RfcommChannelCache channels;
+    private final LinkMetrics metrics = new LinkMetrics();
+    // Replaced when the cached channel fails and SDP is tried
+    private volatile BluetoothSocket socket;
+    private volatile boolean closed;
+
+    public RfcommTransport(BluetoothDevice device, UUID uuid) {
+        this(device, uuid, null);
+    }
+
+    /**
+     * @param channels Where to remember the channel, or null to always use SDP
+     */
+    public RfcommTransport(BluetoothDevice device, UUID uuid, RfcommChannelCache channels) {
+        this.device = device;
+        this.uuid = uuid;
+        this.channels = channels;
+    }
+
+    /**
+     * Wrap a socket that is already connected, such as one accepted by a
+     * server. It must not be connected again.
+     */
+    public RfcommTransport(BluetoothSocket socket) {
+        this.device = socket.getRemoteDevice();
+        this.uuid = null;
+        this.channels = null;
+        this.socket = socket;
+        metrics.setConnectMillis(0);
+        metrics.setConnectPath("accepted");
+    }
+
+    /**
+     * Make a factory for connections to a device.
+     *
+     * @param channels Where to remember the channel, or null to always use SDP
+     */
+    public static Transport.Factory factory(final BluetoothDevice device, final UUID uuid, final RfcommChannelCache channels) {
+        return new Transport.Factory() {
+            @Override
+            public Transport create() {
+                return new RfcommTransport(device, uuid, channels);
+            }
+        };
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // Always cancel discovery because it will slow down a connection
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter != null) {
+            adapter.cancelDiscovery();
+        }
+        String address = device.getAddress();
+        int channel = channels != null ? channels.get(address) : -1;
+        if (channel > 0) {
+            long start = System.nanoTime();
+            try {
+                connect(createChannelSocket(channel), "channel " + channel, start);
+                return;
+            } catch (IOException e) {
+                if (closed) {
+                    throw e;
+                }
+                Log.i(TAG, "Channel " + channel + " failed after " + millisSince(start) + " ms, looking it up");
+                channels.remove(address);
+            }
+        }
+        long start = System.nanoTime();
+        connect(device.createRfcommSocketToServiceRecord(uuid), "SDP", start);
+        if (channels != null) {
+            int resolved = channelOf(socket);
+            if (resolved > 0) {
+                channels.put(address, resolved);
+            }
+        }
+    }
+
+    private void connect(BluetoothSocket socket, String path, long start) throws IOException {
+        this.socket = socket;
+        if (closed) {
+            // Closed while the previous socket was failing
+            socket.close();
+            throw new IOException("Transport closed");
+        }
+        try {
+            // This is a blocking call and will only return on a
+            // successful connection or an exception
+            socket.connect();
+        } catch (IOException e) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+            throw e;
+        }
+        metrics.setConnectMillis(millisSince(start));
+        metrics.setConnectPath(path);
+        Log.i(TAG, "Connected to " + device.getAddress() + " via " + path + " in " + metrics.getConnectMillis() + " ms");
+    }
+
+    private static long millisSince(long startNanos) {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+
+    /**
+     * A socket to a channel, without the SDP lookup.
+     */
+    private BluetoothSocket createChannelSocket(int channel) throws IOException {
+        try {
+            Method method = device.getClass().getMethod("createRfcommSocket", int.class);
+            return (BluetoothSocket) method.invoke(device, channel);
+        } catch (Exception e) {
+            throw new IOException("Cannot connect to a channel directly", e);
+        }
+    }
+
+    /**
+     * The channel a connected socket is on, or -1 if it cannot be read.
+     */
+    private static int channelOf(BluetoothSocket socket) {
+        try {
+            Field port = socket.getClass().getDeclaredField("mPort");
+            port.setAccessible(true);
+            return port.getInt(socket);
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return metrics.wrap(socket.getInputStream());
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return metrics.wrap(socket.getOutputStream());
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        BluetoothSocket socket = this.socket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return device.getName();
+    }
+
+    @Override
+    public LinkMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,117 @@
+package savickas_ignas.win10notifications;
+
+import java.util.ArrayDeque;
+import java.util.List;
+
+/**
+ * Frames that have been written to the PC but not acknowledged yet.
+ * <p>
+ * Every frame sent gets the next sequence number, so the frames in flight
+ * always have consecutive numbers. The PC answers with an {@link Type#Ack}
+ * frame whose first field is the highest sequence number up to which it has
+ * received every frame. On a new connection the PC takes the first sequence
+ * number it sees as the start, because the phone begins by sending the
+ * frames that were never acknowledged again.
+ * <p>
+ * The window is bounded by a number of frames and bytes. The sender keeps
+ * writing while there is room, so it never waits for a round trip per frame,
+ * and stops once the PC falls that far behind.
+ * <p>
+ * Only the WriterThread of the session uses a window, so it takes no lock.
+ * The counters may be read from any thread.
+ */
+public class SendWindow {
+
+    public static final int DEFAULT_MAX_FRAMES = 64;
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024;
+
+    private final ArrayDeque<byte[]> frames = new ArrayDeque<>();
+    private int maxFrames = DEFAULT_MAX_FRAMES;
+    private long maxBytes = DEFAULT_MAX_BYTES;
+    // Sequence number of the next frame, the oldest one in flight is nextSequence - frames.size()
+    private int nextSequence;
+    private long bytes;
+    private volatile long acknowledgedCount;
+    private volatile long retransmittedCount;
+
+    public SendWindow() {
+        this(1);
+    }
+
+    /**
+     * @param firstSequence The sequence number of the first frame
+     */
+    SendWindow(int firstSequence) {
+        nextSequence = firstSequence;
+    }
+
+    /**
+     * Set the limits of the window. They apply from the next frame.
+     */
+    public void setLimits(int maxFrames, long maxBytes) {
+        this.maxFrames = maxFrames;
+        this.maxBytes = maxBytes;
+    }
+
+    public boolean hasRoom() {
+        return frames.size() < maxFrames && bytes < maxBytes;
+    }
+
+    /**
+     * Put a frame in flight.
+     *
+     * @return The sequence number to send it with
+     */
+    public int add(byte[] frame) {
+        frames.addLast(frame);
+        bytes += frame.length;
+        return nextSequence++;
+    }
+
+    /**
+     * Release every frame up to and including a sequence number.
+     *
+     * @return The number of frames released
+     */
+    public int acknowledge(int sequence) {
+        int first = nextSequence - frames.size();
+        // Serial number arithmetic, so the numbers can wrap around
+        if (sequence - first < 0 || sequence - nextSequence >= 0) {
+            return 0;
+        }
+        int count = sequence - first + 1;
+        for (int i = 0; i < count; i++) {
+            bytes -= frames.pollFirst().length;
+        }
+        acknowledgedCount += count;
+        return count;
+    }
+
+    /**
+     * Copy out the frames in flight, oldest first, to send them again.
+     *
+     * @param out Receives the frames
+     * @return The sequence number of the first frame
+     */
+    public int unacknowledged(List<byte[]> out) {
+        out.addAll(frames);
+        retransmittedCount += frames.size();
+        return nextSequence - frames.size();
+    }
+
+    public int size() {
+        return frames.size();
+    }
+
+    public long bytes() {
+        return bytes;
+    }
+
+    public long getAcknowledgedCount() {
+        return acknowledgedCount;
+    }
+
+    public long getRetransmittedCount() {
+        return retransmittedCount;
+    }
+}
@@ -0,0 +1,121 @@
+package savickas_ignas.win10notifications;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A TCP connection to the PC, for when both are on the same network. It
+ * carries the same frames as RFCOMM at a much higher rate, which helps with
+ * large syncs.
+ */
+public class TcpTransport implements Transport {
+
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final int connectTimeoutMillis;
+    private final Socket socket;
+    private final LinkMetrics metrics = new LinkMetrics();
+
+    public TcpTransport(String host, int port) {
+        this(host, port, DEFAULT_CONNECT_TIMEOUT_MILLIS);
+    }
+
+    public TcpTransport(String host, int port, int connectTimeoutMillis) {
+        this.host = host;
+        this.port = port;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.socket = new Socket();
+    }
+
+    /**
+     * Wrap a socket that is already connected, such as one accepted by a server.
+     */
+    public TcpTransport(Socket socket) throws IOException {
+        this.host = socket.getInetAddress().getHostAddress();
+        this.port = socket.getPort();
+        this.connectTimeoutMillis = 0;
+        this.socket = socket;
+        socket.setTcpNoDelay(true);
+        metrics.setConnectMillis(0);
+        metrics.setConnectPath("accepted");
+    }
+
+    /**
+     * Make a factory for connections to an address.
+     */
+    public static Transport.Factory factory(final String host, final int port) {
+        return new Transport.Factory() {
+            @Override
+            public Transport create() {
+                return new TcpTransport(host, port);
+            }
+        };
+    }
+
+    /**
+     * Make a factory for connections to an address written as host:port,
+     * with an IPv6 host in brackets.
+     *
+     * @throws IllegalArgumentException If the address has no valid port
+     */
+    public static Transport.Factory factory(String address) {
+        int colon = address.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("Expected host:port, got " + address);
+        }
+        String host = address.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(colon + 1));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad port in " + address, e);
+        }
+        if (port <= 0 || port > 65535) {
+            throw new IllegalArgumentException("Bad port in " + address);
+        }
+        return factory(host, port);
+    }
+
+    @Override
+    public void connect() throws IOException {
+        long start = System.nanoTime();
+        socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+        // Messages are already batched into one write, Nagle would only delay them
+        socket.setTcpNoDelay(true);
+        metrics.setConnectMillis((System.nanoTime() - start) / 1000000);
+        metrics.setConnectPath("TCP");
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return metrics.wrap(socket.getInputStream());
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        return metrics.wrap(socket.getOutputStream());
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    @Override
+    public String getName() {
+        return host + ":" + port;
+    }
+
+    @Override
+    public LinkMetrics getMetrics() {
+        return metrics;
+    }
+}
@@ -0,0 +1,42 @@
+package savickas_ignas.win10notifications;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A byte stream to the PC. The frame protocol runs the same over every
+ * transport, so the service only needs to know how to open one.
+ * <p>
+ * {@link #close()} may be called from any thread, also while
+ * {@link #connect()} or a read is blocked, which then fails with an
+ * {@link IOException}.
+ */
+public interface Transport {
+
+    /**
+     * Makes a new transport for every connection attempt, because a closed
+     * socket cannot be connected again.
+     */
+    interface Factory {
+        Transport create() throws IOException;
+    }
+
+    /**
+     * Connect to the PC. Blocks until connected or failed.
+     */
+    void connect() throws IOException;
+
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    void close() throws IOException;
+
+    /**
+     * A name of the PC to show to the user.
+     */
+    String getName();
+
+    LinkMetrics getMetrics();
+}
@@ -4,7 +4,7 @@ import java.util.HashMap;
 import java.util.Map;
 
 public enum Type {
-    Remove(0), Add(1), Open(2);
+    Remove(0), Add(1), Open(2), Sync(3), Ack(4), Ping(5), Pong(6);
 
     private int value;
     private static Map map = new HashMap<>();
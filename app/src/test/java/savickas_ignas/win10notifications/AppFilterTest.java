@@ -0,0 +1,31 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class AppFilterTest {
+    @Test
+    public void accepts_onlyListedPackages() throws Exception {
+        AppFilter filter = AppFilter.of(Arrays.asList("com.whatsapp", "org.telegram.messenger"));
+        assertTrue(filter.accepts("com.whatsapp"));
+        assertFalse(filter.accepts("com.spotify.music"));
+        assertFalse(filter.accepts(null));
+        assertEquals(2, filter.size());
+
+        assertSame(AppFilter.EMPTY, AppFilter.of(null));
+        assertFalse(AppFilter.of(null).accepts("com.whatsapp"));
+    }
+
+    @Test
+    public void filter_isNotChangedByItsSource() throws Exception {
+        Set<String> apps = new HashSet<>(Arrays.asList("com.whatsapp"));
+        AppFilter filter = AppFilter.of(apps);
+        apps.clear();
+        assertTrue(filter.accepts("com.whatsapp"));
+    }
+}
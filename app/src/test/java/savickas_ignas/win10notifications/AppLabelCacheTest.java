@@ -0,0 +1,54 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class AppLabelCacheTest {
+    @Test
+    public void labels_areLookedUpOnce() throws Exception {
+        final List<String> lookups = new ArrayList<>();
+        AppLabelCache cache = new AppLabelCache(new AppLabelCache.Loader() {
+            @Override
+            public CharSequence load(String packageName) {
+                lookups.add(packageName);
+                return packageName.equals("gone") ? "" : packageName.toUpperCase();
+            }
+        }, 2);
+
+        assertEquals("A", cache.get("a"));
+        assertEquals("A", cache.get("a"));
+        assertEquals("", cache.get("gone"));
+        assertEquals("", cache.get("gone"));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        cache.invalidate("a");
+        cache.get("a");
+        assertEquals("[a, gone, a]", lookups.toString());
+    }
+
+    @Test
+    public void leastRecentlyUsed_isEvicted() throws Exception {
+        AppLabelCache cache = new AppLabelCache(new AppLabelCache.Loader() {
+            @Override
+            public CharSequence load(String packageName) {
+                return packageName;
+            }
+        }, 2);
+        cache.get("a");
+        cache.get("b");
+        cache.get("a");
+        cache.get("c");
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+
+        cache.get("a");
+        assertEquals(2, cache.getHits());
+        cache.get("b");
+        assertEquals(4, cache.getMisses());
+    }
+}
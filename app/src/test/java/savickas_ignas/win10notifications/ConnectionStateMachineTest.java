@@ -0,0 +1,71 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest {
+    @Test
+    public void staleAttempt_cannotChangeState() throws Exception {
+        ConnectionStateMachine connection = new ConnectionStateMachine();
+        long first = connection.beginAttempt();
+        long second = connection.beginAttempt();
+        assertNotEquals(first, second);
+
+        assertFalse(connection.transition(first, ConnectionStateMachine.State.Connecting, ConnectionStateMachine.State.None));
+        assertTrue(connection.transition(second, ConnectionStateMachine.State.Connecting, ConnectionStateMachine.State.Connected));
+        assertTrue(connection.isConnected());
+
+        connection.set(ConnectionStateMachine.State.None);
+        assertFalse(connection.transition(second, ConnectionStateMachine.State.Connected, ConnectionStateMachine.State.None));
+        assertEquals(ConnectionStateMachine.State.None, connection.getState());
+    }
+
+    @Test
+    public void acceptedConnection_neverReplacesAConnectedOne() throws Exception {
+        ConnectionStateMachine connection = new ConnectionStateMachine();
+        long outbound = connection.beginAttempt();
+        long accepted = connection.tryBeginAttempt();
+        assertTrue(accepted > outbound);
+        assertTrue(connection.transition(accepted, ConnectionStateMachine.State.Connecting, ConnectionStateMachine.State.Connected));
+        assertFalse(connection.transition(outbound, ConnectionStateMachine.State.Connecting, ConnectionStateMachine.State.Connected));
+
+        assertEquals(-1, connection.tryBeginAttempt());
+        connection.set(ConnectionStateMachine.State.NoBluetooth);
+        assertEquals(-1, connection.tryBeginAttempt());
+    }
+
+    @Test
+    public void listeners_seeEveryChange() throws Exception {
+        ConnectionStateMachine connection = new ConnectionStateMachine();
+        final List<String> changes = new ArrayList<>();
+        connection.addListener(new ConnectionStateMachine.Listener() {
+            @Override
+            public void onStateChanged(ConnectionStateMachine.Snapshot previous, ConnectionStateMachine.Snapshot current) {
+                changes.add(previous.getState() + ">" + current.getState() + (current.isReconnect() ? "+" : ""));
+            }
+        });
+        long attempt = connection.beginAttempt();
+        connection.transition(attempt, ConnectionStateMachine.State.Connecting, ConnectionStateMachine.State.Connected);
+        connection.setReconnect(true);
+        connection.setReconnect(true);
+        connection.transition(attempt, ConnectionStateMachine.State.Connected, ConnectionStateMachine.State.None);
+
+        assertEquals("[None>Connecting, Connecting>Connected, Connected>Connected+, Connected>None+]", changes.toString());
+    }
+
+    @Test
+    public void busiest_prefersTheMostConnectedState() throws Exception {
+        ConnectionStateMachine.State state = ConnectionStateMachine.State.NoBluetooth;
+        state = ConnectionStateMachine.busiest(state, ConnectionStateMachine.State.None);
+        assertEquals(ConnectionStateMachine.State.None, state);
+        state = ConnectionStateMachine.busiest(state, ConnectionStateMachine.State.Connected);
+        state = ConnectionStateMachine.busiest(state, ConnectionStateMachine.State.Connecting);
+        assertEquals(ConnectionStateMachine.State.Connected, state);
+        assertEquals(ConnectionStateMachine.State.Listen,
+                ConnectionStateMachine.busiest(ConnectionStateMachine.State.Listen, ConnectionStateMachine.State.NoBluetooth));
+    }
+}
@@ -0,0 +1,127 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+    private static byte[] frame(Type type, String... fields) {
+        FrameEncoder encoder = new FrameEncoder();
+        encoder.begin(type);
+        for (String field : fields) {
+            encoder.field(field);
+        }
+        return encoder.end();
+    }
+
+    @Test
+    public void decodesFramesSplitAtEveryByte() throws Exception {
+        byte[] first = frame(Type.Add, "12", "Title \ud83d\ude00", "Text ;;", "App", "FF0000");
+        byte[] second = frame(Type.Remove, "+37060000000_sms", "reply");
+        byte[] stream = new byte[first.length + second.length];
+        System.arraycopy(first, 0, stream, 0, first.length);
+        System.arraycopy(second, 0, stream, first.length, second.length);
+
+        FrameDecoder decoder = new FrameDecoder(16, 1024);
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        int decoded = 0;
+        for (int i = 0; i < stream.length; i++) {
+            decoder.feed(stream, i, 1);
+            while (decoder.next(frame)) {
+                if (decoded == 0) {
+                    assertEquals(Type.Add, frame.getType());
+                    assertEquals(12, frame.getInt(0, -1));
+                    assertEquals("Title \ud83d\ude00", frame.getString(1));
+                    assertEquals("Text ;;", frame.getString(2));
+                    assertEquals("FF0000", frame.getString(4));
+                } else {
+                    assertEquals(Type.Remove, frame.getType());
+                    assertFalse(frame.isInt(0));
+                    assertEquals("+37060000000_sms", frame.getString(0));
+                    assertEquals("", frame.getString(5));
+                }
+                decoded++;
+            }
+        }
+        assertEquals(2, decoded);
+        assertEquals(0, decoder.available());
+    }
+
+    @Test
+    public void readsFramesLargerThanTheBuffer() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            text.append((char) ('a' + i % 26));
+        }
+        byte[] data = frame(Type.Add, "1", text.toString());
+        FrameDecoder decoder = new FrameDecoder(16, 1024 * 1024);
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        while (!decoder.next(frame)) {
+            decoder.readFrom(in);
+        }
+        assertEquals(text.toString(), frame.getString(1));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsOversizedFrames() throws Exception {
+        FrameDecoder decoder = new FrameDecoder(16, 64);
+        byte[] data = frame(Type.Add, "1", new String(new char[100]));
+        decoder.feed(data, 0, data.length);
+        decoder.next(new FrameDecoder.Frame());
+    }
+
+    @Test
+    public void readsSequenceNumber() throws Exception {
+        byte[] data = frame(Type.Ack, "7");
+        FrameEncoder.setSequence(data, 0, -2);
+        FrameDecoder decoder = new FrameDecoder();
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        decoder.feed(data, 0, data.length);
+        assertTrue(decoder.next(frame));
+        assertEquals(Type.Ack, frame.getType());
+        assertEquals(-2, frame.getSequence());
+        assertEquals(7, frame.getLong(0, 0));
+    }
+
+    @Test
+    public void parsesIntsWithoutStrings() throws Exception {
+        byte[] data = frame(Type.Add, "-2147483648", "2147483648", "42x");
+        FrameDecoder decoder = new FrameDecoder();
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        decoder.feed(data, 0, data.length);
+        assertTrue(decoder.next(frame));
+        assertEquals(Integer.MIN_VALUE, frame.getInt(0, 0));
+        assertFalse(frame.isInt(1));
+        assertEquals(7, frame.getInt(2, 7));
+    }
+
+    @Test
+    public void sequenceFields_acceptSignedAndUnsigned() throws Exception {
+        byte[] data = frame(Type.Ack, "-2147483648", "2147483648", "4294967295", "4294967296", "x");
+        FrameDecoder decoder = new FrameDecoder();
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        decoder.feed(data, 0, data.length);
+        assertTrue(decoder.next(frame));
+        assertEquals(Integer.MIN_VALUE, frame.getSequenceField(0, 0));
+        assertEquals(Integer.MIN_VALUE, frame.getSequenceField(1, 0));
+        assertEquals(-1, frame.getSequenceField(2, 0));
+        assertEquals(Long.MIN_VALUE, frame.getSequenceField(3, Long.MIN_VALUE));
+        assertEquals(Long.MIN_VALUE, frame.getSequenceField(4, Long.MIN_VALUE));
+    }
+
+    @Test
+    public void parsesLongsUpToTheirLimit() throws Exception {
+        byte[] data = frame(Type.Sync, "9223372036854775807", "9223372036854775808", "10000000000000000000");
+        FrameDecoder decoder = new FrameDecoder();
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        decoder.feed(data, 0, data.length);
+        assertTrue(decoder.next(frame));
+        assertEquals(Long.MAX_VALUE, frame.getLong(0, -1));
+        assertEquals(-1, frame.getLong(1, -1));
+        assertEquals(-1, frame.getLong(2, -1));
+    }
+}
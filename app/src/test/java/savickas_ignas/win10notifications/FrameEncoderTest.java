@@ -0,0 +1,49 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class FrameEncoderTest {
+    @Test
+    public void header_isLengthTypeFieldCountAndSequence() throws Exception {
+        byte[] frame = new FrameEncoder().begin(Type.Remove).field("key").end();
+        FrameEncoder.setSequence(frame, 0, 0x01020304);
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        assertEquals(frame.length - FrameEncoder.LENGTH_SIZE, buffer.getInt());
+        assertEquals(Type.Remove.getValue(), buffer.get());
+        assertEquals(1, buffer.get());
+        assertEquals(0x01020304, buffer.getInt());
+        assertEquals(3, buffer.get());
+        assertEquals('k', buffer.get());
+    }
+
+    @Test
+    public void fieldLengths_areUtf8Bytes() throws Exception {
+        String text = "Labas \u0105\u010d \ud83d\ude00";
+        byte[] frame = new FrameEncoder().begin(Type.Add).field(text).field(null).end();
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        assertEquals(utf8.length, FrameEncoder.utf8Length(text));
+        assertEquals(utf8.length, frame[FrameEncoder.HEADER_SIZE]);
+        byte[] written = new byte[utf8.length];
+        System.arraycopy(frame, FrameEncoder.HEADER_SIZE + 1, written, 0, utf8.length);
+        assertArrayEquals(utf8, written);
+        assertEquals(0, frame[frame.length - 1]);
+    }
+
+    @Test
+    public void longFields_growBufferAndUseMultiByteVarint() throws Exception {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append('a');
+        }
+        FrameEncoder encoder = new FrameEncoder(16);
+        byte[] frame = encoder.begin(Type.Add).field(builder).end();
+        assertEquals(FrameEncoder.HEADER_SIZE + 2 + 1000, frame.length);
+        assertEquals((byte) (0x80 | (1000 & 0x7F)), frame[FrameEncoder.HEADER_SIZE]);
+        assertEquals(1000 >> 7, frame[FrameEncoder.HEADER_SIZE + 1]);
+    }
+}
@@ -0,0 +1,42 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeartbeatTest {
+    private static final long SECOND = 1000000000L;
+
+    @Test
+    public void silentLink_isDeadAfterTheMissThreshold() throws Exception {
+        Heartbeat heartbeat = new Heartbeat();
+        heartbeat.setLimits(1000, 2);
+        heartbeat.reset(0);
+        assertEquals(SECOND, heartbeat.nanosUntilPing(0));
+        assertTrue(heartbeat.ping(SECOND, -1));
+        assertTrue(heartbeat.ping(2 * SECOND, -1));
+        assertFalse(heartbeat.ping(3 * SECOND, -1));
+
+        // Anything received since the last ping shows the link is alive
+        assertTrue(heartbeat.ping(3 * SECOND, 2 * SECOND + 1));
+        assertEquals(1, heartbeat.getMisses());
+    }
+
+    @Test
+    public void pong_estimatesRoundTrip() throws Exception {
+        Heartbeat heartbeat = new Heartbeat();
+        assertEquals(-1, heartbeat.getRttMillis());
+        heartbeat.onPong(1000, 1100);
+        assertEquals(100, heartbeat.getRttMillis());
+        assertEquals(300, heartbeat.getTimeoutMillis());
+
+        heartbeat.onPong(2000, 2132);
+        assertEquals(104, heartbeat.getRttMillis());
+        assertEquals(2, heartbeat.getPongCount());
+
+        // A pong with a time this phone never sent gives no sample
+        heartbeat.onPong(0, 3000);
+        heartbeat.onPong(4000, 3000);
+        assertEquals(2, heartbeat.getPongCount());
+    }
+}
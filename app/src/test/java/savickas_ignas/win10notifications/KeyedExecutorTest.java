@@ -0,0 +1,77 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class KeyedExecutorTest {
+    @Test
+    public void tasksForOneKey_runInOrder() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        KeyedExecutor executor = new KeyedExecutor(pool, 16);
+        final List<Integer> ran = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            final int value = i;
+            executor.execute("key", new Runnable() {
+                @Override
+                public void run() {
+                    ran.add(value);
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, (int) ran.get(i));
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void blockedKey_doesNotHoldUpOtherKeys() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        KeyedExecutor executor = new KeyedExecutor(pool, 16);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch other = new CountDownLatch(1);
+        executor.execute("slow", new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        });
+        executor.execute("slow", new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        executor.execute("fast", new Runnable() {
+            @Override
+            public void run() {
+                other.countDown();
+            }
+        });
+        assertTrue(other.await(5, TimeUnit.SECONDS));
+        // The finished task gives its permit back just after it ran
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (executor.pending() > 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, executor.pending());
+        release.countDown();
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(0, executor.pending());
+    }
+}
@@ -0,0 +1,83 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class NotificationBusTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private static class RecordingReceiver implements NotificationBus.Receiver {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onPosted(NotificationRecord record) {
+            events.add("+" + record.getKey() + ":" + record.getTitle());
+        }
+
+        @Override
+        public void onRemoved(String key) {
+            events.add("-" + key);
+        }
+    }
+
+    @Test
+    public void events_reachTheReceiverInOrder() throws Exception {
+        NotificationBus bus = new NotificationBus();
+        RecordingReceiver receiver = new RecordingReceiver();
+        assertFalse(bus.post(new NotificationRecord("a", "app", "App", "lost", "", null, false)));
+        assertEquals(1, bus.getDroppedCount());
+
+        bus.register(receiver, DIRECT);
+        assertTrue(bus.post(new NotificationRecord("a", "app", "App", "hello", "text", null, false)));
+        assertTrue(bus.remove("a"));
+        assertEquals("[+a:hello, -a]", receiver.events.toString());
+    }
+
+    @Test
+    public void unregister_leavesANewerReceiver() throws Exception {
+        NotificationBus bus = new NotificationBus();
+        RecordingReceiver old = new RecordingReceiver();
+        RecordingReceiver current = new RecordingReceiver();
+        bus.register(old, DIRECT);
+        bus.register(current, DIRECT);
+        // The old service is destroyed after the new one was created
+        bus.unregister(old);
+        bus.remove("a");
+        assertEquals("[-a]", current.events.toString());
+        assertTrue(old.events.isEmpty());
+
+        bus.unregister(current);
+        assertFalse(bus.remove("b"));
+    }
+
+    @Test
+    public void requests_reachTheSource() throws Exception {
+        NotificationBus bus = new NotificationBus();
+        final List<String> requests = new ArrayList<>();
+        assertFalse(bus.requestResync());
+        bus.register(new NotificationBus.Source() {
+            @Override
+            public void onCancel(String key) {
+                requests.add("cancel " + key);
+            }
+
+            @Override
+            public void onResyncRequested() {
+                requests.add("resync");
+            }
+        }, DIRECT);
+        bus.cancel("a");
+        bus.requestResync();
+        assertEquals("[cancel a, resync]", requests.toString());
+    }
+}
@@ -0,0 +1,50 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NotificationFilterTest {
+    @Test
+    public void firstMatchingRule_decides() throws Exception {
+        NotificationFilter filter = NotificationFilter.compile(
+                "# calls stay even while ongoing\n"
+                + "allow package=com.android.dialer\n"
+                + "drop ongoing\n"
+                + "drop package=com.google.android.gm title~\"^Sending \"\n"
+                + "drop channel=promo !summary\n");
+
+        assertEquals(NotificationFilter.Action.Allow, filter.decide("com.android.dialer", null, null,
+                NotificationFilter.FLAG_ONGOING, "Call", ""));
+        assertEquals(NotificationFilter.Action.Drop, filter.decide("com.spotify.music", null, null,
+                NotificationFilter.FLAG_ONGOING, "Song", ""));
+        assertEquals(NotificationFilter.Action.Drop, filter.decide("com.google.android.gm", null, null,
+                0, "Sending 2 messages", ""));
+        assertEquals(NotificationFilter.Action.Allow, filter.decide("com.google.android.gm", null, null,
+                0, "Re: Sending ", ""));
+        // Rules for one package never apply to another
+        assertEquals(NotificationFilter.Action.Allow, filter.decide("com.whatsapp", null, null,
+                0, "Sending 2 messages", ""));
+        assertEquals(NotificationFilter.Action.Drop, filter.decide("com.whatsapp", "promo", null, 0, "", ""));
+        assertEquals(NotificationFilter.Action.Allow, filter.decide("com.whatsapp", "promo", null,
+                NotificationFilter.FLAG_SUMMARY, "", ""));
+    }
+
+    @Test
+    public void uses_onlyTheFlagsOfTheRules() throws Exception {
+        NotificationFilter filter = NotificationFilter.compile(NotificationFilter.DEFAULT_RULES);
+        assertTrue(filter.uses(NotificationFilter.FLAG_SILENT));
+        assertFalse(NotificationFilter.compile("drop ongoing").uses(NotificationFilter.FLAG_SILENT));
+        assertSame(NotificationFilter.ALLOW_ALL, NotificationFilter.compile("\n# nothing\n"));
+    }
+
+    @Test
+    public void badRule_namesItsLine() throws Exception {
+        try {
+            NotificationFilter.compile("drop ongoing\nkeep summary");
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Line 2"));
+        }
+    }
+}
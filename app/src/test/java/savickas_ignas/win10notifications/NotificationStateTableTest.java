@@ -0,0 +1,105 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NotificationStateTableTest {
+    private static byte[] frame(String key, String text) {
+        return new FrameEncoder().begin(Type.Add).field(key).field(text).end();
+    }
+
+    @Test
+    public void unchangedNotification_getsNoRevision() throws Exception {
+        NotificationStateTable table = new NotificationStateTable();
+        assertTrue(table.put("a", frame("a", "1")));
+        assertFalse(table.put("a", frame("a", "1")));
+        assertEquals(1, table.getRevision());
+        assertTrue(table.put("a", frame("a", "2")));
+        assertEquals(2, table.getRevision());
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void changesSince_areOrderedAndIncludeRemovals() throws Exception {
+        NotificationStateTable table = new NotificationStateTable();
+        table.put("a", frame("a", "1"));
+        table.put("b", frame("b", "1"));
+        long revision = table.getRevision();
+        table.put("c", frame("c", "1"));
+        table.remove("a");
+        assertFalse(table.remove("a"));
+
+        assertTrue(table.hasChangesSince(table.getEpoch(), revision));
+        List<NotificationStateTable.Record> changes = table.changesSince(revision);
+        assertEquals(2, changes.size());
+        assertEquals("c", changes.get(0).getKey());
+        assertEquals("a", changes.get(1).getKey());
+        assertTrue(changes.get(1).isRemoved());
+        assertEquals(2, table.snapshot().size());
+    }
+
+    @Test
+    public void epoch_survivesTheLink() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            NotificationStateTable table = new NotificationStateTable();
+            table.put("a", frame("a", "1"));
+            // The PC answers a Sync with the epoch and revision it was sent
+            byte[] sync = new FrameEncoder().begin(Type.Sync)
+                    .field(Long.toString(table.getEpoch()))
+                    .field(Long.toString(table.getRevision()))
+                    .end();
+            FrameDecoder decoder = new FrameDecoder();
+            FrameDecoder.Frame frame = new FrameDecoder.Frame();
+            decoder.feed(sync, 0, sync.length);
+            assertTrue(decoder.next(frame));
+            assertEquals(table.getEpoch(), frame.getLong(0, -1));
+            assertTrue(table.hasChangesSince(frame.getLong(0, -1), frame.getLong(1, -1)));
+        }
+    }
+
+    @Test
+    public void records_doNotChangeAfterTheyAreHandedOut() throws Exception {
+        NotificationStateTable table = new NotificationStateTable();
+        byte[] frame = frame("a", "1");
+        table.put("a", frame);
+        NotificationStateTable.Record record = table.snapshot().get(0);
+        table.remove("a");
+
+        assertFalse(record.isRemoved());
+        assertSame(frame, record.getFrame());
+        assertEquals(1, record.getRevision());
+    }
+
+    @Test
+    public void digest_dependsOnlyOnLiveContent() throws Exception {
+        NotificationStateTable first = new NotificationStateTable();
+        first.put("a", frame("a", "1"));
+        first.put("b", frame("b", "1"));
+        first.put("c", frame("c", "1"));
+        first.remove("c");
+
+        NotificationStateTable second = new NotificationStateTable();
+        second.put("b", frame("b", "1"));
+        second.put("a", frame("a", "0"));
+        second.put("a", frame("a", "1"));
+        assertEquals(first.getDigest(), second.getDigest());
+    }
+
+    @Test
+    public void oldRevisions_needFullState() throws Exception {
+        NotificationStateTable table = new NotificationStateTable(2);
+        table.put("a", frame("a", "1"));
+        table.put("b", frame("b", "1"));
+        table.put("c", frame("c", "1"));
+        table.remove("a");
+        table.remove("b");
+        assertTrue(table.hasChangesSince(table.getEpoch(), 0));
+        table.remove("c");
+        assertFalse(table.hasChangesSince(table.getEpoch(), 0));
+        assertTrue(table.hasChangesSince(table.getEpoch(), 4));
+        assertFalse(table.hasChangesSince(table.getEpoch() + 1, table.getRevision()));
+    }
+}
@@ -0,0 +1,70 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class NotificationThrottleTest {
+    private final List<String> sent = new ArrayList<>();
+    private final NotificationThrottle throttle = new NotificationThrottle(new NotificationThrottle.Sink() {
+        @Override
+        public void deliver(NotificationRecord record) {
+            sent.add(record.getKey() + ":" + record.getText());
+        }
+    });
+
+    private static NotificationRecord update(String key, String packageName, String text) {
+        return new NotificationRecord(key, packageName, "", "", text, null, false);
+    }
+
+    @Test
+    public void firstUpdate_goesOutAtOnce_andTheLastOneFollows() throws Exception {
+        throttle.setInterval(1000);
+        throttle.offer(update("download", "app", "10%"), 0);
+        throttle.offer(update("download", "app", "20%"), 100);
+        throttle.offer(update("download", "app", "30%"), 200);
+        assertEquals("[download:10%]", sent.toString());
+        assertEquals(1000, throttle.nextDueMillis());
+
+        throttle.flush(999);
+        assertEquals(1, sent.size());
+        throttle.flush(1000);
+        assertEquals("[download:10%, download:30%]", sent.toString());
+        assertEquals(-1, throttle.nextDueMillis());
+        assertEquals(1, throttle.getSuppressedCount());
+        assertEquals(Long.valueOf(1), throttle.getSuppressedByPackage().get("app"));
+
+        // Quiet for a whole interval, the next update goes out at once again
+        throttle.flush(2000);
+        throttle.offer(update("download", "app", "done"), 2500);
+        assertEquals("[download:10%, download:30%, download:done]", sent.toString());
+    }
+
+    @Test
+    public void appOverride_andResync_bypassTheInterval() throws Exception {
+        throttle.setInterval("navigation", 0);
+        throttle.offer(update("route", "navigation", "500 m"), 0);
+        throttle.offer(update("route", "navigation", "400 m"), 10);
+        assertEquals("[route:500 m, route:400 m]", sent.toString());
+
+        throttle.offer(update("song", "media", "A"), 0);
+        throttle.offer(update("song", "media", "B"), 10);
+        throttle.offer(new NotificationRecord("song", "media", "", "", "C", null, true), 20);
+        assertEquals("[route:500 m, route:400 m, song:A, song:C]", sent.toString());
+        assertEquals(-1, throttle.nextDueMillis());
+    }
+
+    @Test
+    public void removal_dropsThePendingUpdate() throws Exception {
+        throttle.offer(update("timer", "clock", "0:10"), 0);
+        throttle.offer(update("timer", "clock", "0:09"), 100);
+        throttle.remove("timer");
+        throttle.flush(5000);
+        assertEquals("[timer:0:10]", sent.toString());
+        assertEquals(1, throttle.getSuppressedCount());
+        assertEquals(2, throttle.getOfferedCount());
+    }
+}
@@ -0,0 +1,119 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+    private static byte[] frame(int marker) {
+        return new byte[] {(byte) marker};
+    }
+
+    @Test
+    public void newerAdd_replacesQueuedAddInPlace() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(Type.Add, "a", Priority.Normal, frame(1));
+        queue.offer(Type.Add, "b", Priority.Normal, frame(2));
+        queue.offer(Type.Add, "a", Priority.Normal, frame(3));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getSupersededCount());
+        assertArrayEquals(frame(3), queue.poll().getFrame());
+        assertArrayEquals(frame(2), queue.poll().getFrame());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void remove_cancelsUnsentAdd() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(Type.Add, "a", Priority.Normal, frame(1));
+        queue.offer(Type.Remove, "a", Priority.Remove, frame(2));
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void remove_isKeptForSentKey() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(Type.Add, "a", Priority.Normal, frame(1));
+        assertEquals(Type.Add, queue.poll().getType());
+        queue.offer(Type.Add, "a", Priority.Normal, frame(2));
+        queue.offer(Type.Remove, "a", Priority.Remove, frame(3));
+        queue.offer(Type.Remove, "a", Priority.Remove, frame(4));
+        assertEquals(1, queue.size());
+        OutboundQueue.Entry entry = queue.poll();
+        assertEquals(Type.Remove, entry.getType());
+        assertArrayEquals(frame(3), entry.getFrame());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void urgentClasses_goFirst() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(Type.Add, "a", Priority.Bulk, frame(1));
+        queue.offer(Type.Add, "b", Priority.Normal, frame(2));
+        queue.offer(Type.Add, "+1_call", Priority.Call, frame(3));
+        assertEquals("+1_call", queue.poll().getKey());
+        assertEquals("b", queue.poll().getKey());
+        assertEquals("a", queue.poll().getKey());
+    }
+
+    @Test
+    public void starvingClass_goesAheadOfUrgentClasses() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setMaxWait(Priority.Bulk, 0);
+        queue.offer(Type.Add, "a", Priority.Bulk, frame(1));
+        Thread.sleep(1);
+        queue.offer(Type.Add, "b", Priority.Normal, frame(2));
+        assertEquals("a", queue.poll().getKey());
+    }
+
+    @Test
+    public void newerUrgentAdd_movesQueuedAddUp() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.offer(Type.Add, "a", Priority.Bulk, frame(1));
+        queue.offer(Type.Add, "b", Priority.Normal, frame(2));
+        queue.offer(Type.Add, "a", Priority.Normal, frame(3));
+        assertEquals(0, queue.size(Priority.Bulk));
+        assertEquals("b", queue.poll().getKey());
+        assertArrayEquals(frame(3), queue.poll().getFrame());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void overflow_dropsOldestOfLeastUrgentClass() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setLimits(2, Long.MAX_VALUE);
+        queue.offer(Type.Add, "+1_sms", Priority.Sms, frame(1));
+        queue.offer(Type.Add, "a", Priority.Normal, frame(2));
+        assertTrue(queue.offer(Type.Add, "b", Priority.Normal, frame(3)));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getDroppedCount(Priority.Normal, OutboundQueue.OverflowPolicy.DropOldest));
+        assertEquals("+1_sms", queue.poll().getKey());
+        assertEquals("b", queue.poll().getKey());
+    }
+
+    @Test
+    public void overflow_collapsesClassToSnapshot() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setLimits(Integer.MAX_VALUE, 3);
+        queue.offer(Type.Add, "a", Priority.Bulk, frame(1));
+        queue.offer(Type.Add, "b", Priority.Bulk, frame(2));
+        queue.offer(Type.Add, "c", Priority.Bulk, frame(3));
+        assertFalse(queue.offer(Type.Add, "d", Priority.Bulk, frame(4)));
+        assertEquals(4, queue.getDroppedCount(Priority.Bulk, OutboundQueue.OverflowPolicy.Snapshot));
+        assertEquals(4, queue.getDroppedBytes(Priority.Bulk));
+        assertEquals(0, queue.bytes());
+        assertTrue(queue.poll().isSnapshot());
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void overflow_keepsCalls() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.setLimits(1, Long.MAX_VALUE);
+        queue.offer(Type.Add, "+1_call", Priority.Call, frame(1));
+        assertTrue(queue.offer(Type.Add, "+2_call", Priority.Call, frame(2)));
+        assertFalse(queue.offer(Type.Add, "a", Priority.Normal, frame(3)));
+        assertEquals(0, queue.size(Priority.Normal));
+    }
+}
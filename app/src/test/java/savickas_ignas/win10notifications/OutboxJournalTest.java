@@ -0,0 +1,109 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class OutboxJournalTest {
+    private File path;
+
+    @Before
+    public void setUp() throws Exception {
+        path = File.createTempFile("outbox", ".journal");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        path.delete();
+    }
+
+    private static byte[] frame(int marker, int length) {
+        byte[] frame = new byte[length];
+        frame[0] = (byte) marker;
+        return frame;
+    }
+
+    private static List<String> replay(OutboxJournal journal) {
+        final List<String> replayed = new ArrayList<>();
+        journal.replay(new OutboxJournal.Consumer() {
+            @Override
+            public void accept(Type type, String key, Priority priority, byte[] frame) {
+                replayed.add(type + " " + key + " " + priority + " " + frame[0]);
+            }
+        });
+        return replayed;
+    }
+
+    @Test
+    public void replaysInOrderAfterReopening() throws Exception {
+        OutboxJournal journal = new OutboxJournal(path, 4096);
+        journal.append(Type.Add, "a", Priority.Normal, frame(1, 10));
+        journal.append(Type.Add, "+1_sms", Priority.Sms, frame(2, 10));
+        journal.append(Type.Remove, "a", Priority.Remove, frame(3, 10));
+        journal.close();
+
+        journal = new OutboxJournal(path, 4096);
+        List<String> replayed = replay(journal);
+        assertEquals(3, replayed.size());
+        assertEquals("Add a Normal 1", replayed.get(0));
+        assertEquals("Add +1_sms Sms 2", replayed.get(1));
+        assertEquals("Remove a Remove 3", replayed.get(2));
+        assertTrue(journal.isEmpty());
+        journal.close();
+    }
+
+    @Test
+    public void compactsToLastRecordOfEachKey() throws Exception {
+        OutboxJournal journal = new OutboxJournal(path, 1024);
+        for (int i = 0; i < 20; i++) {
+            journal.append(Type.Add, i % 2 == 0 ? "a" : "b", Priority.Normal, frame(i, 100));
+        }
+        List<String> replayed = replay(journal);
+        assertEquals(0, journal.getDroppedCount());
+        assertTrue(replayed.contains("Add a Normal 18"));
+        assertTrue(replayed.contains("Add b Normal 19"));
+        assertEquals("Add b Normal 19", replayed.get(replayed.size() - 1));
+        journal.close();
+    }
+
+    @Test
+    public void dropsOldestWhenKeysAreUnique() throws Exception {
+        OutboxJournal journal = new OutboxJournal(path, 1024);
+        for (int i = 0; i < 20; i++) {
+            journal.append(Type.Add, "k" + i, Priority.Normal, frame(i, 100));
+        }
+        assertTrue(journal.getDroppedCount() > 0);
+        List<String> replayed = replay(journal);
+        assertEquals(20 - journal.getDroppedCount(), replayed.size());
+        assertEquals("Add k19 Normal 19", replayed.get(replayed.size() - 1));
+        journal.close();
+    }
+
+    @Test
+    public void ignoresTornRecord() throws Exception {
+        OutboxJournal journal = new OutboxJournal(path, 4096);
+        journal.append(Type.Add, "a", Priority.Normal, frame(1, 10));
+        journal.append(Type.Add, "b", Priority.Normal, frame(2, 10));
+        journal.close();
+
+        // Corrupt the last byte of the second record
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        int end = 16 + 2 * (8 + 4 + 1 + 10);
+        file.seek(end - 1);
+        file.write(0x55);
+        file.close();
+
+        journal = new OutboxJournal(path, 4096);
+        List<String> replayed = replay(journal);
+        assertEquals(1, replayed.size());
+        assertEquals("Add a Normal 1", replayed.get(0));
+        journal.close();
+    }
+}
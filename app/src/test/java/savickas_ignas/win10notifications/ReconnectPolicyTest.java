@@ -0,0 +1,53 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectPolicyTest {
+    @Test
+    public void fastRetries_thenExponentialBackoffUpToTheCap() throws Exception {
+        ReconnectPolicy policy = new ReconnectPolicy(new Random(1));
+        policy.setDelays(2, 500, 1000, 5000, 0);
+        assertEquals(500, policy.nextDelayMillis());
+        assertEquals(500, policy.nextDelayMillis());
+        assertEquals(1000, policy.nextDelayMillis());
+        assertEquals(2000, policy.nextDelayMillis());
+        assertEquals(4000, policy.nextDelayMillis());
+        assertEquals(5000, policy.nextDelayMillis());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(5000, policy.nextDelayMillis());
+        }
+        policy.reset();
+        assertEquals(500, policy.nextDelayMillis());
+    }
+
+    @Test
+    public void jitter_staysWithinItsFraction() throws Exception {
+        ReconnectPolicy policy = new ReconnectPolicy(new Random(7));
+        policy.setDelays(0, 0, 10000, 10000, 0.2);
+        boolean varied = false;
+        for (int i = 0; i < 50; i++) {
+            long delay = policy.nextDelayMillis();
+            assertTrue(delay >= 8000 && delay <= 10000);
+            varied |= delay != 10000;
+        }
+        assertTrue(varied);
+    }
+
+    @Test
+    public void onlyAStableConnection_resetsTheFailures() throws Exception {
+        ReconnectPolicy policy = new ReconnectPolicy(new Random(1));
+        policy.setStableMillis(1000);
+        policy.nextDelayMillis();
+        policy.nextDelayMillis();
+        policy.onConnected(10000);
+        policy.onDisconnected(10500);
+        assertEquals(2, policy.getFailures());
+        policy.onConnected(20000);
+        policy.onDisconnected(21000);
+        assertEquals(0, policy.getFailures());
+    }
+}
@@ -0,0 +1,62 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SendWindowTest {
+    private static byte[] frame(int marker) {
+        return new byte[] {(byte) marker};
+    }
+
+    @Test
+    public void cumulativeAck_releasesEveryFrameUpToIt() throws Exception {
+        SendWindow window = new SendWindow();
+        assertEquals(1, window.add(frame(1)));
+        assertEquals(2, window.add(frame(2)));
+        assertEquals(3, window.add(frame(3)));
+        assertEquals(2, window.acknowledge(2));
+        assertEquals(0, window.acknowledge(2));
+        assertEquals(0, window.acknowledge(7));
+        assertEquals(1, window.size());
+
+        List<byte[]> pending = new ArrayList<>();
+        assertEquals(3, window.unacknowledged(pending));
+        assertEquals(1, pending.size());
+        assertArrayEquals(frame(3), pending.get(0));
+    }
+
+    @Test
+    public void fullWindow_hasRoomAgainAfterAck() throws Exception {
+        SendWindow window = new SendWindow();
+        window.setLimits(2, Long.MAX_VALUE);
+        window.add(frame(1));
+        window.add(frame(2));
+        assertFalse(window.hasRoom());
+        window.acknowledge(1);
+        assertTrue(window.hasRoom());
+        assertEquals(1, window.getAcknowledgedCount());
+    }
+
+    @Test
+    public void acks_releaseFramesAcrossTheWrap() throws Exception {
+        SendWindow window = new SendWindow(Integer.MAX_VALUE - 1);
+        for (int i = 0; i < 4; i++) {
+            window.add(frame(i));
+        }
+        FrameDecoder decoder = new FrameDecoder();
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        // The PC may write the sequence of the header unsigned or signed
+        for (String sequence : new String[]{"2147483648", "-2147483647"}) {
+            byte[] ack = new FrameEncoder().begin(Type.Ack).field(sequence).end();
+            decoder.feed(ack, 0, ack.length);
+            assertTrue(decoder.next(frame));
+            window.acknowledge((int) frame.getSequenceField(0, Long.MIN_VALUE));
+        }
+        assertEquals(0, window.size());
+        assertEquals(4, window.getAcknowledgedCount());
+    }
+}
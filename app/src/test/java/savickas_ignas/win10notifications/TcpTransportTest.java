@@ -0,0 +1,104 @@
+package savickas_ignas.win10notifications;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+
+import static org.junit.Assert.*;
+
+public class TcpTransportTest {
+    private ServerSocket server;
+    private TcpTransport phone;
+    private TcpTransport pc;
+
+    @Before
+    public void connect() throws Exception {
+        server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        phone = new TcpTransport(server.getInetAddress().getHostAddress(), server.getLocalPort());
+        phone.connect();
+        pc = new TcpTransport(server.accept());
+    }
+
+    @After
+    public void close() throws Exception {
+        phone.close();
+        pc.close();
+        server.close();
+    }
+
+    @Test
+    public void framesAndAcks_crossTheLoopback() throws Exception {
+        SendWindow window = new SendWindow();
+        FrameEncoder encoder = new FrameEncoder();
+        byte[] first = encoder.begin(Type.Add).field("a").field("title").end();
+        byte[] second = encoder.begin(Type.Remove).field("b").end();
+        byte[] batch = new byte[first.length + second.length];
+        System.arraycopy(first, 0, batch, 0, first.length);
+        FrameEncoder.setSequence(batch, 0, window.add(first));
+        System.arraycopy(second, 0, batch, first.length, second.length);
+        FrameEncoder.setSequence(batch, first.length, window.add(second));
+        phone.getOutputStream().write(batch);
+
+        FrameDecoder pcDecoder = new FrameDecoder();
+        FrameDecoder.Frame frame = new FrameDecoder.Frame();
+        int last = 0;
+        int count = 0;
+        while (count < 2) {
+            pcDecoder.readFrom(pc.getInputStream());
+            while (pcDecoder.next(frame)) {
+                last = frame.getSequence();
+                count++;
+            }
+        }
+        assertEquals(2, last);
+        assertEquals("b", frame.getString(0));
+        pc.getOutputStream().write(encoder.begin(Type.Ack).field(Integer.toString(last)).end());
+
+        FrameDecoder phoneDecoder = new FrameDecoder();
+        while (!phoneDecoder.next(frame)) {
+            phoneDecoder.readFrom(phone.getInputStream());
+        }
+        assertEquals(Type.Ack, frame.getType());
+        assertEquals(2, window.acknowledge(frame.getInt(0, 0)));
+        assertEquals(0, window.size());
+        assertEquals(batch.length, phone.getMetrics().getBytesWritten());
+        assertEquals(batch.length, pc.getMetrics().getBytesRead());
+    }
+
+    @Test
+    public void close_endsABlockedRead() throws Exception {
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    phone.close();
+                } catch (InterruptedException | IOException ignored) {
+                }
+            }
+        }.start();
+        try {
+            new FrameDecoder().readFrom(phone.getInputStream());
+            fail();
+        } catch (IOException expected) {
+        }
+        assertTrue(phone.getMetrics().getConnectMillis() >= 0);
+    }
+
+    @Test
+    public void factory_readsHostAndPort() throws Exception {
+        assertEquals("192.168.1.5:4000", TcpTransport.factory("192.168.1.5:4000").create().getName());
+        assertEquals("::1:4000", TcpTransport.factory("[::1]:4000").create().getName());
+        for (String address : new String[]{"pc", ":4000", "pc:", "pc:port", "pc:70000"}) {
+            try {
+                TcpTransport.factory(address);
+                fail(address);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+}